@@ -5,24 +5,42 @@
  ******************************************************************************/
 package hillc;
 
+import hillc.JobServerClientOutput.Protocol;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.CharsetUtil;
 import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.net.SocketAddress;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Simple socket listening server, that takes in a string payload and passes that to a JobServerWorker for execution via
@@ -38,97 +56,621 @@ import java.util.concurrent.TimeUnit;
  * with the first character in every line of data sent back is a magic protocol marker. See PROTO_* statics in
  * JobServerClientOutput for full list.
  * <p>
+ * A client may also send a control request instead of a job payload, e.g. "_CSTATS!" (where _ is ascii 30) is answered
+ * straight away with a single "_CSTATS!key=value,..." line, see stats(). Similarly "_CJOBS!" (or "_CJOBS!20") streams
+ * back a snapshot of the jobs held, by state, the oldest, and the busiest clients, as log lines, then DONE, see
+ * JobServerRegistry. Requests may also be preceded by option lines, e.g. "_CID!nightly-batch\n" to identify the client
+ * for rate limiting purposes, see JobServerRequest. Finally a client waiting on many files can send them all as one job,
+ * "_CBULK!/tmp/foo\n/tmp/bar", or list them in a manifest file, "_CMANIFEST!/tmp/foo.manifest", and get a single DONE
+ * (with the worst return code) once they have all arrived.
+ * <p>
+ * CPU heavy jobs, e.g. "_CCHECKSUM!/tmp/foo", split their work into subtasks on a shared ForkJoinPool, with the worker
+ * just checking back on them every so often to send on their progress, see JobServerWorkerSplittable.
+ * <p>
+ * Clients that send the "_CHEARTBEAT!\n" option are pinged ("_CPING!") when quiet, and must answer ("_CPONG!\n"), so
+ * that a client that has silently gone away (e.g. killed behind a NAT) is closed, and its work cancelled, in seconds.
+ * <p>
+ * Clients that would rather not deal in text can instead open with a handshake byte and talk length-prefixed binary
+ * frames, see JobServerFrame.
+ * <p>
+ * With -Djobserver.eventLoopJobs=true, workers that declare themselves non-blocking are run (and re-scheduled) on their
+ * client's own event loop instead, so a job and its output never change threads. Everything else uses the pool.
+ * <p>
  * N.N.B. this only listens on localhost, so the lack of security is intentional! :-)
  */
 public class JobServer {
 
-    // Configuration - internal
-    private static final int THREADS = Runtime.getRuntime().availableProcessors(); // Number of threads we pool for work
-    private static final int WORK_INTERVAL_SECONDS = 30; // Interval for re-scheduling tasks
-    private static final int STATS_INTERVAL_SECONDS = 30; // Interval for queue stats logging
+    // Configuration - internal (overridable via -Djobserver.* system properties, e.g. for load testing)
+    private static final int THREADS = Integer.getInteger("jobserver.threads", Runtime.getRuntime().availableProcessors()); // Number of threads we pool for work
+    private static final int JOBS_LIMIT = Integer.getInteger("jobserver.jobsLimit", 10); // Oldest jobs (and busiest clients) a JOBS! request lists by default
+    private static final int WORK_INTERVAL_SECONDS = Integer.getInteger("jobserver.workIntervalSeconds", 30); // Interval for re-scheduling tasks
+    private static final int STATS_INTERVAL_SECONDS = Integer.getInteger("jobserver.statsIntervalSeconds", 30); // Interval for queue stats logging
+    private static final String CLIENT_LOG = System.getProperty("jobserver.clientLog", "all"); // Default verbosity of the job's log, for clients that don't choose
+    private static final int LOG_SUMMARY_SECONDS = Integer.getInteger("jobserver.logSummarySeconds", 600); // Interval for summarising held back repeats
+    private static final boolean EVENT_LOOP_JOBS = Boolean.parseBoolean(System.getProperty("jobserver.eventLoopJobs", "false")); // Run non-blocking workers on their client's event loop
+    private static final int SPLIT_THREADS = Integer.getInteger("jobserver.splitThreads", Runtime.getRuntime().availableProcessors()); // Number of threads for split (e.g. checksum) work
+    private static final int PROGRESS_SECONDS = Integer.getInteger("jobserver.progressSeconds", 1); // Interval for split work progress lines
+
+    // Configuration - elastic worker pool, between min and max threads (so off by default), see JobServerPoolSizer
+    private static final int MIN_THREADS = Integer.getInteger("jobserver.minThreads", THREADS); // Shrink no lower than
+    private static final int MAX_THREADS = Math.max(Integer.getInteger("jobserver.maxThreads", THREADS), MIN_THREADS); // Grow no higher than
+    private static final long GROW_LAG_MILLIS = Long.getLong("jobserver.growLagMillis", 1000); // Grow when the queue head is this far behind
+    private static final double SHRINK_BUSY_RATIO = Double.parseDouble(System.getProperty("jobserver.shrinkBusyRatio", "0.5")); // Shrink when workers are less busy than this
+    private static final int POOL_SIZER_MILLIS = 1000; // Interval for (re)sizing the pool
+
+    // Configuration - per client admission control and fair sharing, see JobServerRateLimiter
+    private static final double RATE_LIMIT_PER_SECOND = Double.parseDouble(System.getProperty("jobserver.rateLimit.perSecond", "0")); // Per client, 0 is unlimited
+    private static final int RATE_LIMIT_BURST = Integer.getInteger("jobserver.rateLimit.burst", 100); // Per client
+    private static final long RATE_LIMIT_MAX_DELAY_MILLIS = Long.getLong("jobserver.rateLimit.maxDelayMillis", 0); // Delay admission up to this, else FAIL
+    private static final boolean FAIR_SHARE = Boolean.parseBoolean(System.getProperty("jobserver.fairShare", "false")); // Share worker time between clients
+    private static final int RATE_LIMIT_DECAY_MILLIS = 1000; // Interval for forgetting old worker time
+
+    // Configuration - heartbeats, for clients that opt in
+    private static final int HEARTBEAT_SECONDS = Integer.getInteger("jobserver.heartbeatSeconds", 5); // Quiet time before we ping
+    static final int HEARTBEAT_MISSES = Integer.getInteger("jobserver.heartbeatMisses", 2); // Unanswered pings before we close
+
+    // Configuration - scale out, several processes sharing the port, each owning a share of the work, see JobServerCluster
+    private static final int INSTANCES = Integer.getInteger("jobserver.instances", 1); // Number of processes sharing the port
+    private static final int INSTANCE = Integer.getInteger("jobserver.instance", 0); // This process' index, from 0
+    private static final boolean REUSE_PORT = INSTANCES > 1 || Boolean.getBoolean("jobserver.reusePort"); // SO_REUSEPORT, needs epoll
 
     // Configuration - client needs to know these
-    private static final int PORT = 12345; // localhost port we listen on
+    private static final int PORT = Integer.getInteger("jobserver.port", 12345); // localhost port we listen on
+    private static final int FORWARD_PORT = Integer.getInteger("jobserver.forwardPort", PORT + 1); // Instance 0's (private) port, then +1 for each instance
+    static final int RATE_LIMITED_RETURN_CODE = 75; // FAIL! code when over quota, i.e. EX_TEMPFAIL "try again later"
+    static final int BAD_REQUEST_RETURN_CODE = 64; // FAIL! code for an unknown control request, i.e. EX_USAGE
+
+    // Configuration - startup, see JobServerStartup
+    private static final boolean WARM_UP = Boolean.parseBoolean(System.getProperty("jobserver.warmUp", "true")); // Warm up the hot paths before accepting
+    private static final int WARM_UP_ITERATIONS = Integer.getInteger("jobserver.warmUpIterations", 200); // Requests through the pipeline, of each kind
+    private static final String READY_FILE = System.getProperty("jobserver.readyFile"); // Written once we are accepting, else none
+
+    // Optional workload recording, for replay via JobServerReplay
+    private static final String TRACE_FILE = System.getProperty("jobserver.trace"); // Trace file to write, else disabled
 
     // Thread safe global things
     private static final Logger LOG = LoggerFactory.getLogger(JobServer.class);
-    private static final ScheduledThreadPoolExecutor EXECUTOR_SERVICE = new ScheduledThreadPoolExecutor(THREADS);
+    private static final JobServerPoolSizer.BusyTimedExecutor EXECUTOR_SERVICE = new JobServerPoolSizer.BusyTimedExecutor(THREADS, System::nanoTime);
+    private static final JobServerPoolSizer POOL_SIZER = new JobServerPoolSizer(EXECUTOR_SERVICE,
+            MIN_THREADS, MAX_THREADS, GROW_LAG_MILLIS, SHRINK_BUSY_RATIO, System::nanoTime);
+    private static final JobServerRateLimiter RATE_LIMITER = new JobServerRateLimiter(RATE_LIMIT_PER_SECOND, RATE_LIMIT_BURST, RATE_LIMIT_MAX_DELAY_MILLIS, System::nanoTime);
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final JobServerCluster CLUSTER = INSTANCES > 1 ? new JobServerCluster(INSTANCE, INSTANCES, FORWARD_PORT) : null;
+    private static final LongAdder FORWARDED = new LongAdder();
+    private static final JobServerRegistry REGISTRY = new JobServerRegistry(System::nanoTime);
+    private static final LongAdder EVENT_LOOP_JOBS_ACTIVE = new LongAdder(); // i.e. not in EXECUTOR_SERVICE's numbers
+    private static final ForkJoinPool SPLIT_POOL = new ForkJoinPool(SPLIT_THREADS); // Shared by every splittable job's subtasks
+    private static volatile JobServerTrace TRACE = JobServerTrace.DISABLED; // Opened by a startup thread, read by all
+    private static volatile long startupMillis = 0; // From main() to accepting connections
 
     /**
      * Starts the Daemon JobServer on localhost, defaults to port 12345
+     * <p>
+     * The sockets are bound first, but don't accept until everything else (which starts side by side) is ready, so a
+     * client connecting during startup waits in the backlog, rather than being refused.
      *
      * @param args (ignored)
      * @throws InterruptedException If the server was unable to complete startup/shutdown
+     * @throws IOException          If the workload trace could not be opened
      */
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws InterruptedException, IOException {
+        final long bootNanos = System.nanoTime();
         LOG.info("Booting up");
 
-        //
-        // Start worker thread pool, with stats logged every n seconds
-        //
-        LOG.info("Starting worker threads...");
-        EXECUTOR_SERVICE.prestartAllCoreThreads();
-
-        new Timer("Worker Stats").scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                LOG.info(EXECUTOR_SERVICE.toString());
-
-                // Peep at head of queue, and see if it has "fallen behind" due to us getting overloaded
-                final Runnable head = EXECUTOR_SERVICE.getQueue().peek();
-                if (head instanceof ScheduledFuture) {
-                    final long delay = ((ScheduledFuture<?>) head).getDelay(TimeUnit.SECONDS);
-                    if (delay < 0) {
-                        LOG.warn("Worker queue head has fallen {} seconds behind!", -delay);
-                    }
-                }
-            }
-        }, 0, STATS_INTERVAL_SECONDS * 1000);
-
         //
         // Start up the (Netty v4) server to listen on the port, using the Handler below for all incoming traffic
         //
         LOG.info("Starting socket handler...");
         final InetSocketAddress socket = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
-        LOG.info("Listening on {}", socket);
 
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        // SO_REUSEPORT (so the kernel balances connections between processes on the same port) needs native epoll
+        final boolean epoll = REUSE_PORT && Epoll.isAvailable();
+        if (REUSE_PORT && !epoll) {
+            if (INSTANCES > 1) {
+                // Without it, every instance but the first would just fail to bind the shared port
+                throw new IllegalStateException("jobserver.instances=" + INSTANCES + " needs SO_REUSEPORT, i.e. the epoll"
+                        + " transport, which isn't available", Epoll.unavailabilityCause());
+            }
+            LOG.warn("SO_REUSEPORT needs the epoll transport, which isn't available, so using NIO", Epoll.unavailabilityCause());
+        }
+        EventLoopGroup bossGroup = epoll ? new EpollEventLoopGroup() : new NioEventLoopGroup();
+        EventLoopGroup workerGroup = epoll ? new EpollEventLoopGroup() : new NioEventLoopGroup();
+        final ExecutorService startup = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "Startup"));
+        CompletableFuture<Timer> timers = null;
         try {
-            new ServerBootstrap().group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+            final ServerBootstrap bootstrap = new ServerBootstrap().group(bossGroup, workerGroup)
+                    .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                    .option(ChannelOption.AUTO_READ, false) // i.e. don't accept until we are ready, see below
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) {
-                            socketChannel.pipeline().addLast(new Handler());
+                            final boolean forwarded = socketChannel.localAddress().getPort() != PORT; // i.e. our private port
+                            socketChannel.pipeline().addLast("negotiator", new JobServerFrameCodec.Negotiator())
+                                    .addLast("handler", new Handler(forwarded));
+                        }
+                    }).childOption(ChannelOption.SO_KEEPALIVE, true);
+            // N.B. The private port is ours alone, so no SO_REUSEPORT, i.e. a duplicate (or stale) instance fails to bind
+            final ServerBootstrap forwardBootstrap = bootstrap.clone();
+            if (epoll) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            final List<Channel> listeners = new ArrayList<>();
+
+            // Take work forwarded from the other processes, on our own private port
+            if (CLUSTER != null) {
+                final InetSocketAddress forwardSocket = new InetSocketAddress(InetAddress.getLoopbackAddress(), CLUSTER.getForwardPort(INSTANCE));
+                LOG.info("Instance {} of {}, taking forwarded work on {}", INSTANCE, INSTANCES, forwardSocket);
+                listeners.add(forwardBootstrap.bind(forwardSocket).sync().channel());
+            }
+            final Channel listener = bootstrap.bind(socket).sync().channel();
+            listeners.add(listener);
+            LOG.info("Listening on {}", socket);
+
+            //
+            // Meanwhile, start the rest, none of which depend on each other
+            //
+            timers = CompletableFuture.supplyAsync(JobServer::startTimers, startup);
+            final CompletableFuture<?>[] subsystems = {
+                    // Start recording the workload, if asked to
+                    CompletableFuture.runAsync(JobServer::startTrace, startup),
+
+                    // Start worker thread pool (and warm each thread up)
+                    CompletableFuture.runAsync(() -> {
+                        LOG.info("Starting worker threads...");
+                        EXECUTOR_SERVICE.setRemoveOnCancelPolicy(true); // Don't keep abandoned work in the queue
+                        EXECUTOR_SERVICE.prestartAllCoreThreads();
+                        if (WARM_UP) {
+                            try {
+                                JobServerStartup.warmUpPool(EXECUTOR_SERVICE, EXECUTOR_SERVICE.getCorePoolSize());
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }, startup),
+
+                    // Warm up the request path
+                    CompletableFuture.runAsync(() -> {
+                        if (WARM_UP) {
+                            JobServerStartup.warmUpPipeline(WARM_UP_ITERATIONS, Handler::new);
                         }
-                    }).childOption(ChannelOption.SO_KEEPALIVE, true)
-                    // Start accepting connections
-                    .bind(socket).sync()
-                    // Also add a graceful shutdown
-                    .channel().closeFuture().sync();
+                    }, startup),
+
+                    // Stats (and pool sizing etc) timers
+                    timers
+            };
+            try {
+                CompletableFuture.allOf(subsystems).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw e;
+            }
+
+            //
+            // Ready, so start accepting connections (including any waiting in the backlog), and tell the world
+            //
+            for (Channel channel : listeners) {
+                channel.config().setAutoRead(true);
+            }
+            startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bootNanos);
+            if (READY_FILE != null) {
+                final Map<String, Object> ready = new LinkedHashMap<>();
+                ready.put("pid", ProcessHandle.current().pid());
+                ready.put("port", PORT);
+                ready.put("startupMillis", startupMillis);
+                JobServerStartup.writeReadyFile(Paths.get(READY_FILE), ready);
+            }
+            LOG.info("Ready in {}ms", startupMillis);
+
+            // Also add a graceful shutdown
+            listener.closeFuture().sync();
         } finally {
+            // Stop every thread we started, not just Netty's, else a failed start leaves the JVM running, deaf
+            startup.shutdown();
+            if (timers != null) {
+                timers.thenAccept(Timer::cancel);
+            }
+            EXECUTOR_SERVICE.shutdownNow();
+            SPLIT_POOL.shutdownNow();
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
         }
     }
 
+    // Starts recording the workload, if asked to
+    private static void startTrace() {
+        if (TRACE_FILE == null) {
+            return;
+        }
+        try {
+            TRACE = JobServerTrace.open(Paths.get(TRACE_FILE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                TRACE.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close workload trace", e);
+            }
+        }, "Trace Shutdown"));
+    }
+
+    // Starts the stats logging, rate limit decay, and (if elastic) pool sizing timers, returning their (one) Timer
+    private static Timer startTimers() {
+        final Timer timer = new Timer("Worker Stats");
+        timer.scheduleAtFixedRate(timerTask("stats", () -> {
+            LOG.info(EXECUTOR_SERVICE.toString());
+
+            // See if the head of the queue has "fallen behind" due to us getting overloaded
+            final long lag = TimeUnit.MILLISECONDS.toSeconds(queueLagMillis());
+            if (lag > 0) {
+                LOG.warn("Worker queue head has fallen {} seconds behind!", lag);
+            }
+
+            TRACE.flush();
+        }), 0, STATS_INTERVAL_SECONDS * 1000);
+
+        timer.scheduleAtFixedRate(timerTask("rate limit decay", () -> RATE_LIMITER.decay(queueLagMillis() > 0)),
+                RATE_LIMIT_DECAY_MILLIS, RATE_LIMIT_DECAY_MILLIS);
+
+        if (MIN_THREADS < MAX_THREADS) {
+            LOG.info("Worker pool will be sized between {} and {} threads", MIN_THREADS, MAX_THREADS);
+            timer.scheduleAtFixedRate(timerTask("pool sizer", POOL_SIZER::tick), POOL_SIZER_MILLIS, POOL_SIZER_MILLIS);
+        }
+        return timer;
+    }
+
+    // A TimerTask that logs any problem, rather than throwing it, which would kill the Timer, and every other task on it
+    private static TimerTask timerTask(final String name, final Runnable task) {
+        return new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Problem with the {} timer, carrying on", name, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Peeps at the head of the work queue, and reports how far it has "fallen behind" its scheduled time.
+     *
+     * @return the lag in milliseconds, or 0 if the queue is empty or on time
+     */
+    static long queueLagMillis() {
+        return JobServerPoolSizer.queueLagMillis(EXECUTOR_SERVICE);
+    }
+
+    /**
+     * A point in time snapshot of the server's vital signs, in a simple "key=value,..." form that is easy for tools
+     * (e.g. JobServerLoadGenerator) to parse.
+     *
+     * @return the stats line
+     */
+    static String stats() {
+        final Runtime runtime = Runtime.getRuntime();
+        return "heapUsed=" + (runtime.totalMemory() - runtime.freeMemory()) +
+                ",heapMax=" + runtime.maxMemory() +
+                ",threads=" + EXECUTOR_SERVICE.getPoolSize() +
+                ",coreThreads=" + EXECUTOR_SERVICE.getCorePoolSize() +
+                ",busyPercent=" + Math.round(POOL_SIZER.getBusyRatio() * 100) +
+                ",poolGrows=" + POOL_SIZER.getGrows() +
+                ",poolShrinks=" + POOL_SIZER.getShrinks() +
+                ",active=" + EXECUTOR_SERVICE.getActiveCount() +
+                ",queue=" + EXECUTOR_SERVICE.getQueue().size() +
+                ",lagMillis=" + queueLagMillis() +
+                ",completed=" + EXECUTOR_SERVICE.getCompletedTaskCount() +
+                ",jobs=" + REGISTRY.size() +
+                ",logHeldBack=" + JobServerLogRepeats.getHeldBack() +
+                ",clients=" + RATE_LIMITER.getActiveClients() +
+                ",rejected=" + REJECTED.sum() +
+                ",loopJobs=" + EVENT_LOOP_JOBS_ACTIVE.sum() +
+                ",splitActive=" + SPLIT_POOL.getActiveThreadCount() +
+                ",splitSteals=" + SPLIT_POOL.getStealCount() +
+                ",forwarded=" + FORWARDED.sum() +
+                ",startupMillis=" + startupMillis;
+    }
+
     /**
      * The socket listener logic. Reads the payload and schedules the Runnable "work".
+     * <p>
+     * N.B. One instance per channel, the first burst of reads is the request, anything after that (i.e. heartbeat
+     * replies) just keeps the connection alive.
      */
     public static class Handler extends ChannelInboundHandlerAdapter {
+        private final boolean forwarded; // Did the request come from another instance, so is ours whoever owns it
+        private ByteBuf payload = null; // The request, accumulated until the read burst completes
+        private boolean binary = false; // Did the client negotiate the binary protocol, see JobServerFrame
+        private boolean dispatched = false;
+        private JobServerClientOutput output = null;
+        private JobServerRunnable runnable = null; // The job, once dispatched as one
+        private Channel owner = null; // When forwarding, the connection to the instance that owns the work
+        private int missedHeartbeats = 0;
+
+        /**
+         * Constructor, for a client connection
+         */
+        public Handler() {
+            this(false);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param forwarded if the connection is from another instance, forwarding a client's request
+         */
+        Handler(final boolean forwarded) {
+            this.forwarded = forwarded;
+        }
+
+        /**
+         * @return the job, once the request has been dispatched as one, else null
+         */
+        JobServerRunnable getRunnable() {
+            return runnable;
+        }
+
         @Override
         public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
             try {
-                // Put incoming event onto work queue immediately
-                // N.B. Netty has a decode() pattern if we want a POJO here rather than raw bytes.
-                EXECUTOR_SERVICE.execute(
-                        new JobServerRunnable(EXECUTOR_SERVICE,
-                                new JobServerClientOutput(ctx),
-                                new JobServerWorkerMyBizLogic(WORK_INTERVAL_SECONDS, ((ByteBuf) msg).toString(CharsetUtil.UTF_8))));
+                missedHeartbeats = 0; // Anything from the client means it is still there
+                if (owner != null) {
+                    // Forwarded, so pass on anything else (i.e. heartbeat replies) as is
+                    if (owner.isActive()) {
+                        owner.writeAndFlush(msg instanceof JobServerFrame
+                                ? JobServerFrameCodec.toWire(ctx.alloc(), (JobServerFrame) msg)
+                                : ((ByteBuf) msg).retain());
+                    }
+                } else if (msg instanceof JobServerFrame) {
+                    // Binary protocol, so the request arrives whole
+                    final JobServerFrame frame = (JobServerFrame) msg;
+                    binary = true;
+                    if (!dispatched && frame.type() == JobServerFrame.REQUEST) {
+                        dispatched = true;
+                        final String raw = frame.contentAsString();
+                        dispatch(ctx, raw, JobServerRequest.parse(raw));
+                    }
+                } else if (!dispatched) {
+                    // N.B. Netty has a decode() pattern if we want a POJO here rather than raw bytes.
+                    if (payload == null) {
+                        payload = ctx.alloc().buffer();
+                    }
+                    payload.writeBytes((ByteBuf) msg);
+                }
             } finally {
                 ReferenceCountUtil.release(msg);
             }
         }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            if (!dispatched && payload != null) {
+                final String raw = payload.toString(CharsetUtil.UTF_8);
+                final JobServerRequest request = JobServerRequest.parse(raw);
+                if (request.getCommand() != null || !request.getBody().isEmpty()) { // i.e. not just options (yet)
+                    dispatched = true;
+                    payload.release();
+                    payload = null;
+                    dispatch(ctx, raw, request);
+                }
+            }
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void handlerRemoved(final ChannelHandlerContext ctx) {
+            if (payload != null) {
+                payload.release();
+                payload = null;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            // e.g. a corrupt frame, or a bug, either way the client won't get a reply now, so don't leave them hanging
+            LOG.warn("Problem with client {}, closing", ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+
+        @Override
+        public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) {
+            if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+                // Heard nothing for a while, so ping the client, and give up on them if they have stopped answering
+                if (missedHeartbeats++ < HEARTBEAT_MISSES) {
+                    output.sendPing();
+                } else {
+                    LOG.info("Client {} stopped answering heartbeats, closing", ctx.channel().remoteAddress());
+                    ctx.close();
+                }
+            } else {
+                ctx.fireUserEventTriggered(evt);
+            }
+        }
+
+        // Decodes the request, then either answers it or schedules the work
+        private void dispatch(final ChannelHandlerContext ctx, final String payload, final JobServerRequest request) {
+            // Hand the work to the instance that owns its target, if that isn't us
+            if (CLUSTER != null && !forwarded && isSingleTarget(request)) {
+                final JobServerWorker worker = newWorker(request);
+                final int instance = worker == null ? INSTANCE : CLUSTER.owner(worker.getName());
+                if (instance != INSTANCE) {
+                    FORWARDED.increment();
+                    owner = CLUSTER.forward(ctx.channel(), instance,
+                            forwardedRequest(ctx.alloc(), payload, request, identity(ctx, request), binary), () -> {
+                                // The owner is down (or restarting), so rather than drop the job, run it here
+                                FORWARDED.decrement();
+                                owner = null;
+                                start(ctx, payload, request);
+                            });
+                    return;
+                }
+            }
+            start(ctx, payload, request);
+        }
+
+        // Answers the request, or schedules the work, here
+        private void start(final ChannelHandlerContext ctx, final String payload, final JobServerRequest request) {
+            final JobServerClientOutput output = binary ? new JobServerClientOutput.Binary(ctx) : new JobServerClientOutput(ctx);
+            this.output = output;
+
+            // Switch on compression before the first reply, so the client can decompress everything it reads
+            final String compress = request.getOption(Protocol.OPTION_COMPRESS);
+            if (compress != null) {
+                final JobServerCompression compression = JobServerCompression.of(compress);
+                if (compression == null) {
+                    LOG.warn("Unknown compression '{}' from {}", compress, ctx.channel().remoteAddress());
+                    output.sendFail(BAD_REQUEST_RETURN_CODE);
+                    return;
+                }
+                compression.addEncoderTo(ctx.pipeline());
+            }
+
+            // Control requests are answered immediately, on the event loop
+            if (Protocol.REQUEST_STATS.equals(request.getCommand())) {
+                output.sendStats(stats());
+                return;
+            }
+            if (Protocol.REQUEST_JOBS.equals(request.getCommand())) {
+                sendJobs(output, request.getBody());
+                return;
+            }
+
+            // Record the submission, and how it ends once the client is closed (by us or them)
+            final long jobId = JobServerTrace.nextJobId();
+            TRACE.submitted(jobId, payload);
+            ctx.channel().closeFuture().addListener(future ->
+                    TRACE.completed(jobId, output.getOutcome(), output.getReturnCode(), output.getBytesSent()));
+
+            // Check the request makes sense first, so a bad one doesn't cost the client any of their quota
+            final JobServerWorker worker = newWorker(request);
+            if (worker == null) {
+                LOG.warn("Unknown request '{}' from {}", request.getCommand(), identity(ctx, request));
+                output.sendFail(BAD_REQUEST_RETURN_CODE);
+                return;
+            }
+            final String log = request.getOption(Protocol.OPTION_LOG);
+            final JobServerLogRepeats.Verbosity verbosity = JobServerLogRepeats.Verbosity.of(log != null ? log : CLIENT_LOG);
+            if (verbosity == null) {
+                LOG.warn("Unknown log verbosity '{}' from {}", log, identity(ctx, request));
+                output.sendFail(BAD_REQUEST_RETURN_CODE);
+                return;
+            }
+
+            // Take a token from this client's bucket, turning them away if they are over quota
+            final JobServerRateLimiter.Client client = RATE_LIMITER.client(identity(ctx, request));
+            final long delay = RATE_LIMITER.admit(client);
+            if (delay == JobServerRateLimiter.REJECT) {
+                REJECTED.increment();
+                RATE_LIMITER.release(client);
+                output.sendFail(RATE_LIMITED_RETURN_CODE);
+                return;
+            }
+            RATE_LIMITER.started(client);
+            ctx.channel().closeFuture().addListener(future -> RATE_LIMITER.finished(client));
+            // Non-blocking work may stay on the client's own event loop, rather than hop to the pool and back for output
+            final ScheduledExecutorService executor = EVENT_LOOP_JOBS && worker.isNonBlocking() ? ctx.executor() : EXECUTOR_SERVICE;
+            if (executor != EXECUTOR_SERVICE) {
+                EVENT_LOOP_JOBS_ACTIVE.increment();
+                ctx.channel().closeFuture().addListener(future -> EVENT_LOOP_JOBS_ACTIVE.decrement());
+            }
+            // Track the job, for JOBS! requests, until the client goes
+            final JobServerRegistry.Job job = REGISTRY.register(jobId, client.getIdentity(),
+                    FAIR_SHARE ? new JobServerWorkerFairShare(worker, RATE_LIMITER, client) : worker, output, delay);
+            ctx.channel().closeFuture().addListener(future -> REGISTRY.remove(job));
+            final JobServerLogRepeats logRepeats = verbosity == JobServerLogRepeats.Verbosity.ALL ? null
+                    : new JobServerLogRepeats(verbosity, LOG_SUMMARY_SECONDS, System::nanoTime);
+            final JobServerRunnable runnable = new JobServerRunnable(executor, output, job, logRepeats);
+            this.runnable = runnable;
+
+            output.sendAccepted(jobId);
+
+            // Stop any (re)scheduled work as soon as the client goes, rather than on its next run
+            ctx.channel().closeFuture().addListener(future -> runnable.cancel());
+
+            // Opt in to heartbeats, so we notice a half-open client within seconds, rather than (OS) hours
+            if (request.getOption(Protocol.OPTION_HEARTBEAT) != null) {
+                ctx.pipeline().addBefore(ctx.name(), "heartbeat", new IdleStateHandler(HEARTBEAT_SECONDS, 0, 0));
+            }
+
+            // Put incoming event onto work queue immediately (or as soon as the client's quota allows)
+            if (delay == 0) {
+                executor.execute(runnable);
+            } else {
+                executor.schedule(runnable, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        // Answers a JOBS! request, streaming a snapshot of the jobs held as log lines, then DONE
+        private static void sendJobs(final JobServerClientOutput output, final String body) {
+            final int limit;
+            try {
+                limit = body.trim().isEmpty() ? JOBS_LIMIT : Integer.parseInt(body.trim());
+            } catch (NumberFormatException e) {
+                output.sendFail(BAD_REQUEST_RETURN_CODE);
+                return;
+            }
+            if (limit < 0) {
+                output.sendFail(BAD_REQUEST_RETURN_CODE);
+                return;
+            }
+            output.sendLines(REGISTRY.snapshot(limit).toLines());
+            output.sendDone(0);
+        }
+
+        // Is the request a job for a single target (whose name is the worker's), so has an owner, see JobServerCluster.
+        // N.B. Bulk jobs have many targets, each with its own owner, so stay where they land, as do control requests
+        private static boolean isSingleTarget(final JobServerRequest request) {
+            return request.getCommand() == null || Protocol.REQUEST_CHECKSUM.equals(request.getCommand());
+        }
+
+        // The worker logic for a job request, or null if we don't recognise it
+        private static JobServerWorker newWorker(final JobServerRequest request) {
+            if (request.getCommand() == null) {
+                return new JobServerWorkerMyBizLogic(WORK_INTERVAL_SECONDS, request.getBody());
+            }
+            switch (request.getCommand()) {
+                case Protocol.REQUEST_BULK:
+                    return JobServerWorkerBulk.ofTargets(WORK_INTERVAL_SECONDS, Arrays.asList(request.getBody().split(String.valueOf(Protocol.LINE_ENDING))));
+                case Protocol.REQUEST_MANIFEST:
+                    return JobServerWorkerBulk.ofManifest(WORK_INTERVAL_SECONDS, request.getBody());
+                case Protocol.REQUEST_CHECKSUM:
+                    return new JobServerWorkerChecksum(WORK_INTERVAL_SECONDS, request.getBody(), SPLIT_POOL, PROGRESS_SECONDS);
+                default:
+                    return null;
+            }
+        }
+
+        // The request as the owning instance should see it, i.e. as the client sent it (in their protocol), but with
+        // their identity
+        static ByteBuf forwardedRequest(final ByteBufAllocator alloc, final String payload, final JobServerRequest request,
+                                        final String identity, final boolean binary) {
+            final String raw = request.getOption(Protocol.OPTION_ID) != null ? payload
+                    : Protocol.PROTO_CTRL + Protocol.OPTION_ID + identity + Protocol.LINE_ENDING + payload;
+            if (!binary) {
+                return Unpooled.copiedBuffer(raw, CharsetUtil.UTF_8);
+            }
+            final JobServerFrame frame = JobServerFrame.ofString(alloc, JobServerFrame.REQUEST, raw);
+            try {
+                return Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(new byte[]{JobServerFrame.HANDSHAKE}),
+                        JobServerFrameCodec.toWire(alloc, frame));
+            } finally {
+                frame.release();
+            }
+        }
+
+        // The client's self declared identity if any, else their (peer) address
+        private static String identity(final ChannelHandlerContext ctx, final JobServerRequest request) {
+            final String id = request.getOption(Protocol.OPTION_ID);
+            if (id != null) {
+                return id;
+            }
+            final SocketAddress remote = ctx.channel().remoteAddress();
+            return remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getHostString() : String.valueOf(remote);
+        }
     }
 
 }
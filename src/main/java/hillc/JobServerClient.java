@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.util.CharsetUtil;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A (Netty v4) Java equivalent of jobserver-client.sh, for tools that need to drive a JobServer with many concurrent
+ * connections from one JVM. Each submit() opens its own connection, sends the payload, and completes once the first
+ * terminal control line comes back (or the connection drops). The connection is closed as soon as the reply completes.
+ * Heartbeat pings are answered automatically, so callers may opt in to them with the HEARTBEAT! option.
+ * <p>
+ * Talks either the RS text protocol, or the length-prefixed binary one (see JobServerFrame), where the replies are
+ * mapped back to their text equivalents, e.g. a DONE frame becomes "DONE!" and its return code. Either can also ask
+ * for the replies to be compressed, see JobServerCompression.
+ */
+@ThreadSafe
+class JobServerClient implements AutoCloseable {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * A control line received from the server, e.g. "DONE!0" has command "DONE!" and value "0"
+     */
+    static final class Reply {
+        private final String command;
+        private final String value;
+
+        Reply(final String command, final String value) {
+            this.command = Objects.requireNonNull(command);
+            this.value = Objects.requireNonNull(value);
+        }
+
+        /**
+         * Parses the body of a PROTO_CTRL line.
+         *
+         * @param line the line, minus the PROTO_CTRL prefix
+         * @return the parsed reply
+         */
+        static Reply parse(final String line) {
+            final int bang = line.indexOf('!');
+            return bang < 0 ? new Reply(line, "") : new Reply(line.substring(0, bang + 1), line.substring(bang + 1));
+        }
+
+        String getCommand() {
+            return command;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        boolean isDone() {
+            return Protocol.REPLY_DONE.equals(command);
+        }
+
+        /**
+         * @return the value as a return code, or -1 if it isn't one
+         */
+        int getReturnCode() {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return command + value;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final boolean binary;
+    private final JobServerCompression compression;
+    private final EventLoopGroup group;
+
+    /**
+     * Constructor, for the text protocol
+     *
+     * @param address The JobServer to connect to
+     */
+    JobServerClient(final InetSocketAddress address) {
+        this(address, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param address The JobServer to connect to
+     * @param binary  If to negotiate the binary protocol, rather than text
+     */
+    JobServerClient(final InetSocketAddress address, final boolean binary) {
+        this(address, binary, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param address     The JobServer to connect to
+     * @param binary      If to negotiate the binary protocol, rather than text
+     * @param compression The compression to ask for, or null for none
+     */
+    JobServerClient(final InetSocketAddress address, final boolean binary, final JobServerCompression compression) {
+        this.address = Objects.requireNonNull(address);
+        this.binary = binary;
+        this.compression = compression;
+        this.group = new NioEventLoopGroup();
+    }
+
+    /**
+     * Opens a new connection and sends the payload.
+     *
+     * @param payload the job payload (or control request) to send
+     * @param logSink receives each PROTO_LOG line (minus the prefix) as it arrives
+     * @return a future completed with the first control line the server replies with
+     */
+    CompletableFuture<Reply> submit(final String payload, final Consumer<String> logSink) {
+        final CompletableFuture<Reply> reply = new CompletableFuture<>();
+        final String request = compression == null ? payload
+                : Protocol.PROTO_CTRL + Protocol.OPTION_COMPRESS + compression.optionValue() + Protocol.LINE_ENDING + payload;
+        new Bootstrap().group(group).channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel socketChannel) {
+                        if (binary) {
+                            socketChannel.pipeline().addLast("handler", new BinaryHandler(request, logSink, reply));
+                            JobServerFrameCodec.addTo(socketChannel.pipeline(), "handler");
+                        } else {
+                            socketChannel.pipeline().addLast(
+                                    new LineBasedFrameDecoder(MAX_LINE_LENGTH),
+                                    new StringDecoder(CharsetUtil.UTF_8),
+                                    new Handler(request, logSink, reply));
+                        }
+                        if (compression != null) {
+                            compression.addDecoderTo(socketChannel.pipeline());
+                        }
+                    }
+                })
+                .connect(address).addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        reply.completeExceptionally(future.cause());
+                    }
+                });
+        return reply;
+    }
+
+    @Override
+    public void close() {
+        group.shutdownGracefully();
+    }
+
+    /**
+     * Per connection reply decoding, mirroring the case statement in jobserver-client.sh
+     */
+    private static class Handler extends SimpleChannelInboundHandler<String> {
+        private final String payload;
+        private final Consumer<String> logSink;
+        private final CompletableFuture<Reply> reply;
+
+        Handler(final String payload, final Consumer<String> logSink, final CompletableFuture<Reply> reply) {
+            this.payload = payload;
+            this.logSink = logSink;
+            this.reply = reply;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            reply.whenComplete((r, e) -> ctx.close()); // Also lets the caller hang up, by cancelling the reply
+            ctx.writeAndFlush(Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8));
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final String line) {
+            if (line.startsWith(Protocol.PROTO_LOG)) {
+                logSink.accept(line.substring(Protocol.PROTO_LOG.length()));
+            } else if (line.startsWith(Protocol.PROTO_CTRL + Protocol.REPLY_PING)) {
+                ctx.writeAndFlush(Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REQUEST_PONG + Protocol.LINE_ENDING, CharsetUtil.UTF_8));
+            } else if (line.startsWith(Protocol.PROTO_CTRL)) {
+                reply.complete(Reply.parse(line.substring(Protocol.PROTO_CTRL.length())));
+                ctx.close();
+            } else {
+                reply.completeExceptionally(new IOException("Unknown response: '" + line + "'"));
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            reply.completeExceptionally(new IOException("Connection closed before reply"));
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            reply.completeExceptionally(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Per connection reply decoding for the binary protocol
+     */
+    private static class BinaryHandler extends SimpleChannelInboundHandler<JobServerFrame> {
+        private final String payload;
+        private final Consumer<String> logSink;
+        private final CompletableFuture<Reply> reply;
+
+        BinaryHandler(final String payload, final Consumer<String> logSink, final CompletableFuture<Reply> reply) {
+            this.payload = payload;
+            this.logSink = logSink;
+            this.reply = reply;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            reply.whenComplete((r, e) -> ctx.close()); // Also lets the caller hang up, by cancelling the reply
+
+            // The handshake byte goes out raw, ahead of the length-prefixed frames
+            ctx.pipeline().firstContext().write(Unpooled.wrappedBuffer(new byte[]{JobServerFrame.HANDSHAKE}));
+            ctx.writeAndFlush(JobServerFrame.ofString(ctx.alloc(), JobServerFrame.REQUEST, payload));
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final JobServerFrame frame) {
+            switch (frame.type()) {
+                case JobServerFrame.LOG:
+                    logSink.accept(frame.contentAsString());
+                    break;
+                case JobServerFrame.PING:
+                    ctx.writeAndFlush(JobServerFrame.ofEmpty(JobServerFrame.PONG));
+                    break;
+                case JobServerFrame.ACCEPTED:
+                    break;
+                case JobServerFrame.DONE:
+                    reply.complete(new Reply(Protocol.REPLY_DONE, Integer.toString(frame.contentAsInt())));
+                    break;
+                case JobServerFrame.FAIL:
+                    reply.complete(new Reply(Protocol.REPLY_FAIL, Integer.toString(frame.contentAsInt())));
+                    break;
+                case JobServerFrame.STATS:
+                    reply.complete(new Reply(Protocol.REPLY_STATS, frame.contentAsString()));
+                    break;
+                default:
+                    reply.completeExceptionally(new IOException("Unknown response: " + frame));
+                    ctx.close();
+            }
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            reply.completeExceptionally(new IOException("Connection closed before reply"));
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            reply.completeExceptionally(cause);
+            ctx.close();
+        }
+    }
+}
@@ -6,17 +6,28 @@
 
 package hillc;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufHolder;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import net.jcip.annotations.NotThreadSafe;
 
 import java.io.OutputStream;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Writes out to client via a (not thread safe) OutputStream.
+ * Writes out to client via a (not thread safe) OutputStream, using the RS text protocol (see Binary for the
+ * alternative).
+ * <p>
+ * Writes from the worker's thread are not handed to Netty one at a time (each would be its own event loop task), but
+ * appended to a ring buffer, which the channel's event loop then drains in batches with a single flush.
  */
 @NotThreadSafe
 class JobServerClientOutput {
@@ -36,11 +47,41 @@ class JobServerClientOutput {
 
         static final String REPLY_DONE = "DONE!"; // Client response once work is done
         static final String REPLY_FAIL = "FAIL!"; // Client response should work fail!
+        static final String REPLY_STATS = "STATS!"; // Client response to a stats request
+        static final String REPLY_PING = "PING!"; // Heartbeat, client must answer with REQUEST_PONG (not terminal)
+
+        // Control requests a client may send (prefixed with PROTO_CTRL) instead of a job payload
+        static final String REQUEST_STATS = "STATS!"; // Request a one-off snapshot of the server stats
+        static final String REQUEST_BULK = "BULK!"; // A single job for many targets, one per line
+        static final String REQUEST_MANIFEST = "MANIFEST!"; // A single job for the targets listed in a manifest file
+        static final String REQUEST_PONG = "PONG!"; // Heartbeat answer, may be sent at any time after the request
+        static final String REQUEST_JOBS = "JOBS!"; // Request a snapshot of the jobs held, optionally how many to list
+        static final String REQUEST_CHECKSUM = "CHECKSUM!"; // A job to checksum a file once it arrives, split across cores
+
+        // Options a client may send (prefixed with PROTO_CTRL, and ending with LINE_ENDING) before its request
+        static final String OPTION_ID = "ID!"; // Client identity, for rate limiting, defaults to the peer address
+        static final String OPTION_HEARTBEAT = "HEARTBEAT!"; // Client will answer heartbeats, so can be reaped if it doesn't
+        static final String OPTION_COMPRESS = "COMPRESS!"; // Compress all replies, e.g. "deflate", see JobServerCompression
+        static final String OPTION_LOG = "LOG!"; // How much of the job's log to send, e.g. "all", see JobServerLogRepeats
     }
 
+    // Configuration
+    private static final boolean BATCH_WRITES = Boolean.parseBoolean(System.getProperty("jobserver.batchWrites", "true"));
+    private static final int WRITE_BUFFER_SIZE = Integer.getInteger("jobserver.writeBufferSize", 1024); // Messages
+
     private final ChannelHandlerContext ctx;
     private final OutputStream os; // This is not thread-safe, so don't share it!
 
+    // Written by the worker, drained by the event loop, see write()
+    private final JobServerRingBuffer<Object> pending = BATCH_WRITES ? new JobServerRingBuffer<>(WRITE_BUFFER_SIZE) : null;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainTask = this::drain;
+
+    // Bookkeeping for JobServerTrace, written by the (single) producing thread, read once the channel has closed
+    private volatile long bytesSent = 0;
+    private volatile JobServerTrace.Outcome outcome = JobServerTrace.Outcome.CLOSED;
+    private volatile int returnCode = 0;
+
     /**
      * Constructor
      *
@@ -53,22 +94,23 @@ class JobServerClientOutput {
         this.os = new OutputStream() {
             @Override
             public void write(int i) {
-                ctx.write(Unpooled.buffer(Integer.BYTES).writeByte(i));
+                write(new byte[]{(byte) i}, 0, 1);
             }
 
             @Override
             public void write(byte[] b) {
-                ctx.write(Unpooled.wrappedBuffer(b));
+                write(b, 0, b.length);
             }
 
             @Override
             public void write(byte[] b, int off, int len) {
-                ctx.write(Unpooled.wrappedBuffer(b, off, len));
+                bytesSent += len;
+                JobServerClientOutput.this.write(encodeLog(b, off, len));
             }
 
             @Override
             public void flush() {
-                ctx.flush();
+                JobServerClientOutput.this.flush();
             }
 
             @Override
@@ -93,14 +135,42 @@ class JobServerClientOutput {
         return ctx.channel().isOpen();
     }
 
+    /**
+     * @return the total bytes sent (or queued to be sent) to the client so far
+     */
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return the bytes written but not yet out of the socket, e.g. to a slow reader (safe from any thread)
+     */
+    long getBytesQueued() {
+        final ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes(); // i.e. null once closed
+    }
+
+    /**
+     * @return how the job ended, CLOSED if no terminal event has been sent
+     */
+    JobServerTrace.Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return the return code sent with the terminal event
+     */
+    int getReturnCode() {
+        return returnCode;
+    }
+
     /**
      * Sends the terminal "DONE!" event to the client and closes the socket
      *
      * @param returnCode The return code to be passed back to the client
      */
     void sendDone(int returnCode) {
-        ctx.writeAndFlush(Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REPLY_DONE + returnCode + Protocol.LINE_ENDING, CharsetUtil.UTF_8))
-                .addListener(ChannelFutureListener.CLOSE);
+        sendTerminal(JobServerTrace.Outcome.DONE, Protocol.REPLY_DONE, returnCode);
     }
 
     /**
@@ -109,7 +179,212 @@ class JobServerClientOutput {
      * @param returnCode The return code to be passed back to the client
      */
     void sendFail(int returnCode) {
-        ctx.writeAndFlush(Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REPLY_FAIL + returnCode + Protocol.LINE_ENDING, CharsetUtil.UTF_8))
-                .addListener(ChannelFutureListener.CLOSE);
+        sendTerminal(JobServerTrace.Outcome.FAIL, Protocol.REPLY_FAIL, returnCode);
+    }
+
+    /**
+     * Sends lines of text as log events, e.g. a report, to be followed by a terminal event
+     *
+     * @param lines The lines, without line endings
+     */
+    void sendLines(final List<String> lines) {
+        for (String line : lines) {
+            final byte[] b = (Protocol.PROTO_LOG + line + Protocol.LINE_ENDING).getBytes(CharsetUtil.UTF_8);
+            bytesSent += b.length;
+            write(encodeLog(b, 0, b.length));
+        }
+    }
+
+    private void sendTerminal(final JobServerTrace.Outcome outcome, final String reply, final int returnCode) {
+        final Object msg = encodeTerminal(reply, returnCode);
+        this.bytesSent += sizeOf(msg);
+        this.returnCode = returnCode;
+        this.outcome = outcome;
+        write(new Closing(msg)); // Flushes itself
+    }
+
+    /**
+     * Tells the client the id its job was admitted with, if the protocol can carry it.
+     *
+     * @param jobId the job's id
+     */
+    void sendAccepted(long jobId) {
+        final Object msg = encodeAccepted(jobId);
+        if (msg != null) {
+            ctx.writeAndFlush(msg);
+        }
+    }
+
+    /**
+     * Sends a (non-terminal) "PING!" heartbeat to the client.
+     * <p>
+     * N.B. Unlike the other sends, this comes from the channel's event loop, so it doesn't count towards getBytesSent()
+     */
+    void sendPing() {
+        ctx.writeAndFlush(encodePing());
+    }
+
+    /**
+     * Sends the terminal "STATS!" event to the client and closes the socket
+     *
+     * @param stats The stats line to be passed back to the client
+     */
+    void sendStats(String stats) {
+        ctx.writeAndFlush(encodeStats(stats)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    //
+    // Getting messages from the worker's thread to the event loop, in order
+    //
+
+    // A terminal message, the connection is closed once it has been sent
+    private static final class Closing {
+        private final Object msg;
+
+        private Closing(final Object msg) {
+            this.msg = msg;
+        }
+    }
+
+    private void write(final Object msg) {
+        if (pending == null) {
+            writeNow(msg);
+        } else if (ctx.executor().inEventLoop()) {
+            drainPending(); // Don't overtake what the worker already wrote
+            writeNow(msg);
+        } else {
+            // The common case, the worker's thread is the only producer, so the ring is single producer single consumer
+            while (!pending.offer(msg)) {
+                if (!isClientConnected()) {
+                    ReferenceCountUtil.release(msg instanceof Closing ? ((Closing) msg).msg : msg);
+                    return;
+                }
+                scheduleDrain(); // Full, so let the event loop catch up
+                Thread.yield();
+            }
+            if (msg instanceof Closing) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    private void flush() {
+        if (pending == null) {
+            ctx.flush();
+        } else if (ctx.executor().inEventLoop()) {
+            drainPending();
+            ctx.flush();
+        } else {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            ctx.executor().execute(drainTask);
+        }
+    }
+
+    // On the event loop, everything written so far, then a single flush
+    private void drain() {
+        drainScheduled.set(false); // Before polling, so anything offered after this point schedules another drain
+        drainPending();
+        ctx.flush();
+    }
+
+    private void drainPending() {
+        for (Object msg; (msg = pending.poll()) != null; ) {
+            writeNow(msg);
+        }
+    }
+
+    private void writeNow(final Object msg) {
+        if (msg instanceof Closing) {
+            ctx.writeAndFlush(((Closing) msg).msg).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            ctx.write(msg);
+        }
+    }
+
+    //
+    // The wire encoding of each message, i.e. the RS text protocol here, see Binary for the alternative
+    //
+
+    Object encodeLog(final byte[] b, final int off, final int len) {
+        return Unpooled.wrappedBuffer(b, off, len); // Already prefixed with PROTO_LOG by the Logback encoder
+    }
+
+    Object encodeTerminal(final String reply, final int returnCode) {
+        return Unpooled.wrappedBuffer((Protocol.PROTO_CTRL + reply + returnCode + Protocol.LINE_ENDING).getBytes(CharsetUtil.UTF_8));
+    }
+
+    Object encodeAccepted(final long jobId) {
+        return null; // Text clients don't need to know
+    }
+
+    Object encodePing() {
+        return Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REPLY_PING + Protocol.LINE_ENDING, CharsetUtil.UTF_8);
+    }
+
+    Object encodeStats(final String stats) {
+        return Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REPLY_STATS + stats + Protocol.LINE_ENDING, CharsetUtil.UTF_8);
+    }
+
+    private static int sizeOf(final Object msg) {
+        return msg instanceof ByteBufHolder
+                ? Integer.BYTES + 1 + ((ByteBufHolder) msg).content().readableBytes() // i.e. a JobServerFrame
+                : ((ByteBuf) msg).readableBytes();
+    }
+
+    /**
+     * Writes out to a client that negotiated the binary protocol, see JobServerFrame.
+     */
+    @NotThreadSafe
+    static class Binary extends JobServerClientOutput {
+
+        private static final int PREFIX_LENGTH = Protocol.PROTO_LOG.getBytes(CharsetUtil.UTF_8).length;
+
+        /**
+         * Constructor
+         *
+         * @param ctx The client's socket channel handler context
+         */
+        Binary(final ChannelHandlerContext ctx) {
+            super(ctx);
+        }
+
+        @Override
+        Object encodeLog(final byte[] b, int off, int len) {
+            // The Logback encoder writes one whole PROTO_LOG prefixed line at a time, which framing makes redundant
+            if (len >= PREFIX_LENGTH && b[off] == Protocol.RECORD_SEPARATOR) {
+                off += PREFIX_LENGTH;
+                len -= PREFIX_LENGTH;
+            }
+            if (len > 0 && b[off + len - 1] == Protocol.LINE_ENDING) {
+                len--;
+            }
+            return new JobServerFrame(JobServerFrame.LOG, Unpooled.wrappedBuffer(b, off, len));
+        }
+
+        @Override
+        Object encodeTerminal(final String reply, final int returnCode) {
+            final byte type = Protocol.REPLY_DONE.equals(reply) ? JobServerFrame.DONE : JobServerFrame.FAIL;
+            return JobServerFrame.ofInt(ByteBufAllocator.DEFAULT, type, returnCode);
+        }
+
+        @Override
+        Object encodeAccepted(final long jobId) {
+            return JobServerFrame.ofLong(ByteBufAllocator.DEFAULT, JobServerFrame.ACCEPTED, jobId);
+        }
+
+        @Override
+        Object encodePing() {
+            return JobServerFrame.ofEmpty(JobServerFrame.PING);
+        }
+
+        @Override
+        Object encodeStats(final String stats) {
+            return JobServerFrame.ofString(ByteBufAllocator.DEFAULT, JobServerFrame.STATS, stats);
+        }
     }
 }
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import net.jcip.annotations.Immutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Several JobServer processes sharing one port on one host (via SO_REUSEPORT, so the kernel spreads the connections
+ * between them), where each worker name (e.g. the file being waited on) is owned by exactly one of them, by consistent
+ * hashing. So duplicate targets always end up in the same process, however the kernel happened to route them.
+ * <p>
+ * N.B. Bulk jobs (BULK!, MANIFEST!) are the exception, their targets each have their own owner, so they are run
+ * wherever they land, and don't meet duplicates of their targets in other jobs.
+ * <p>
+ * A process that accepts a job it doesn't own forwards it, over loopback, to the owner's private forwarding port, and
+ * then just relays bytes between the two sockets, so either wire protocol (and compression) passes straight through.
+ * If the owner can't be reached (e.g. it is restarting) the job is run where it landed instead, as ownership only
+ * brings duplicates together, it isn't needed for the job to work.
+ */
+@Immutable
+final class JobServerCluster {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobServerCluster.class);
+    private static final int VIRTUAL_NODES = 160; // Per instance, evens out the ring
+
+    private final int instance;
+    private final int instances;
+    private final int forwardPortBase;
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>(); // Hash to instance, effectively immutable
+
+    /**
+     * Constructor
+     *
+     * @param instance        this process' index, from 0
+     * @param instances       the number of processes
+     * @param forwardPortBase the forwarding port of instance 0, the others follow on from it
+     */
+    JobServerCluster(final int instance, final int instances, final int forwardPortBase) {
+        if (instances < 1 || instance < 0 || instance >= instances) {
+            throw new IllegalArgumentException("Bad instance " + instance + " of " + instances);
+        }
+        this.instance = instance;
+        this.instances = instances;
+        this.forwardPortBase = forwardPortBase;
+        for (int i = 0; i < instances; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash("instance-" + i + "#" + v), i);
+            }
+        }
+    }
+
+    /**
+     * @return this process' index
+     */
+    int getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the number of processes
+     */
+    int getInstances() {
+        return instances;
+    }
+
+    /**
+     * @param instance a process' index
+     * @return the loopback port it takes forwarded jobs on
+     */
+    int getForwardPort(final int instance) {
+        return forwardPortBase + instance;
+    }
+
+    /**
+     * @param name the worker name, e.g. a filename
+     * @return the index of the process that owns it
+     */
+    int owner(final String name) {
+        final Map.Entry<Integer, Integer> next = ring.ceilingEntry(hash(name));
+        return next != null ? next.getValue() : ring.firstEntry().getValue(); // Wrap round
+    }
+
+    // FNV-1a, then the murmur3 finaliser, as FNV alone clusters similar (e.g. numbered) names
+    static int hash(final String s) {
+        int h = 0x811c9dc5;
+        for (byte b : s.getBytes(CharsetUtil.UTF_8)) {
+            h = (h ^ b) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Hands a client connection over to its owner, i.e. replays the request to the owner, then relays everything
+     * between the two until either side closes.
+     *
+     * @param client      the client's channel, on whose event loop the relay runs
+     * @param owner       the owning process' index
+     * @param request     the raw bytes that made up the request (released here)
+     * @param unreachable run (later, on the client's event loop) if the owner can't be reached, e.g. it is restarting
+     * @return the owner channel, to relay anything more the client sends (once it is active)
+     */
+    Channel forward(final Channel client, final int owner, final ByteBuf request, final Runnable unreachable) {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), getForwardPort(owner));
+        final Channel upstream = new Bootstrap().group(client.eventLoop())
+                .channel(client instanceof EpollSocketChannel ? EpollSocketChannel.class : NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new Relay(client, request))
+                .connect(address).addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        if (client.isActive()) {
+                            LOG.warn("Could not reach instance {} on {}, for {}", owner, address, client.remoteAddress(), future.cause());
+                            client.eventLoop().execute(unreachable); // i.e. never before we return
+                        } else {
+                            client.close();
+                        }
+                    }
+                }).channel();
+        client.closeFuture().addListener(future -> upstream.close());
+        return upstream;
+    }
+
+    // Owner to client, everything as is, bypassing the client pipeline's own encoders
+    private static final class Relay extends ChannelInboundHandlerAdapter {
+        private final Channel client;
+        private ByteBuf request;
+
+        private Relay(final Channel client, final ByteBuf request) {
+            this.client = client;
+            this.request = request;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(request);
+            request = null;
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            client.pipeline().firstContext().write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            client.flush();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            client.pipeline().firstContext().writeAndFlush(Unpooled.EMPTY_BUFFER)
+                    .addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void handlerRemoved(final ChannelHandlerContext ctx) {
+            ReferenceCountUtil.release(request); // i.e. never connected
+            request = null;
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            ctx.close();
+        }
+    }
+}
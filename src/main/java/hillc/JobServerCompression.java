@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.CoalescingBufferQueue;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.JdkZlibEncoder;
+import io.netty.handler.codec.compression.SnappyFrameDecoder;
+import io.netty.handler.codec.compression.SnappyFrameEncoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.Locale;
+
+/**
+ * Optional compression of everything the server sends back to a client, requested with the COMPRESS! option, e.g.
+ * "_CCOMPRESS!deflate\n" where _ is ascii 30. It applies to either wire protocol, and only from server to client.
+ * <p>
+ * Compressed blocks are only emitted at the existing flush points (i.e. once per log event, as logback flushes each
+ * one), by coalescing the writes in between, so a client can always decode everything it has been sent so far.
+ */
+enum JobServerCompression {
+
+    /**
+     * zlib wrapped deflate, e.g. python's zlib.decompressobj(), best ratio as the dictionary spans the whole job
+     */
+    DEFLATE {
+        @Override
+        ChannelHandler newEncoder() {
+            return new JdkZlibEncoder(ZlibWrapper.ZLIB, DEFLATE_LEVEL); // Sync flushes each message it is given
+        }
+
+        @Override
+        ChannelHandler newDecoder() {
+            return new JdkZlibDecoder(ZlibWrapper.ZLIB);
+        }
+    },
+
+    /**
+     * Framed snappy, cheaper but each block is compressed on its own
+     */
+    SNAPPY {
+        @Override
+        ChannelHandler newEncoder() {
+            return new SnappyFrameEncoder();
+        }
+
+        @Override
+        ChannelHandler newDecoder() {
+            return new SnappyFrameDecoder();
+        }
+    };
+
+    // Configuration
+    private static final int DEFLATE_LEVEL = Integer.getInteger("jobserver.deflateLevel", 6); // 1 (fast) to 9 (small)
+
+    abstract ChannelHandler newEncoder();
+
+    abstract ChannelHandler newDecoder();
+
+    /**
+     * @param name the option value, e.g. "deflate"
+     * @return the compression, or null if we don't support it
+     */
+    static JobServerCompression of(final String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the option value that requests this compression
+     */
+    String optionValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Compresses all further writes on a (server) pipeline.
+     *
+     * @param pipeline the pipeline
+     */
+    void addEncoderTo(final ChannelPipeline pipeline) {
+        pipeline.addFirst("coalescer", new Coalescer()).addFirst("compressor", newEncoder());
+    }
+
+    /**
+     * Decompresses everything read on a (client) pipeline.
+     *
+     * @param pipeline the pipeline
+     */
+    void addDecoderTo(final ChannelPipeline pipeline) {
+        pipeline.addFirst("decompressor", newDecoder());
+    }
+
+    /**
+     * Holds back written buffers until the next flush, then passes them on as one, so the compressor sees (and sync
+     * flushes) a single block per flush rather than one per write.
+     */
+    @NotThreadSafe // Only used from the channel's event loop
+    static final class Coalescer extends ChannelOutboundHandlerAdapter {
+        private CoalescingBufferQueue pending;
+
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) {
+            pending = new CoalescingBufferQueue(ctx.channel());
+        }
+
+        @Override
+        public void handlerRemoved(final ChannelHandlerContext ctx) {
+            pending.releaseAndFailAll(new ClosedChannelException());
+        }
+
+        @Override
+        public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+            if (msg instanceof ByteBuf) {
+                pending.add((ByteBuf) msg, promise);
+            } else {
+                writePending(ctx); // Keep things in order
+                ctx.write(msg, promise);
+            }
+        }
+
+        @Override
+        public void flush(final ChannelHandlerContext ctx) {
+            writePending(ctx);
+            ctx.flush();
+        }
+
+        @Override
+        public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) {
+            pending.releaseAndFailAll(new ClosedChannelException()); // As per Netty, unflushed writes are dropped
+            ctx.close(promise);
+        }
+
+        private void writePending(final ChannelHandlerContext ctx) {
+            if (!pending.isEmpty()) {
+                final ChannelPromise promise = ctx.newPromise();
+                ctx.write(pending.remove(ctx.alloc(), pending.readableBytes(), promise), promise);
+            }
+        }
+    }
+}
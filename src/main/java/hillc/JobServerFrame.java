@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+/**
+ * A single message in the (optional) binary wire protocol, the alternative to the RS text protocol for clients that
+ * would rather not scan for newlines, or need to carry binary payloads or job ids.
+ * <p>
+ * A client selects it by sending the HANDSHAKE byte first (which can never start a text request, as it is never valid
+ * UTF-8), after which every message, in both directions, is
+ * <pre>
+ * length:int32 type:byte content:byte[length - 1]
+ * </pre>
+ * See JobServerFrameCodec for the Netty encoding/decoding.
+ */
+final class JobServerFrame extends DefaultByteBufHolder {
+
+    static final byte HANDSHAKE = (byte) 0xFE; // First byte on the connection, to select binary mode
+    static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    // Client to server
+    static final byte REQUEST = 'R'; // utf8, as per the text request, e.g. options then a command or job payload
+    static final byte PONG = 'P'; // (empty) heartbeat answer
+
+    // Server to client
+    static final byte ACCEPTED = 'A'; // jobId:int64, the job was admitted
+    static final byte LOG = 'L'; // utf8, a single log line (without line ending)
+    static final byte DONE = 'D'; // returnCode:int32, terminal
+    static final byte FAIL = 'F'; // returnCode:int32, terminal
+    static final byte STATS = 'S'; // utf8, terminal
+    static final byte PING = 'H'; // (empty) heartbeat, must be answered with PONG
+
+    private final byte type;
+
+    /**
+     * Constructor
+     *
+     * @param type    the frame type, e.g. LOG
+     * @param content the frame content, which this frame now owns
+     */
+    JobServerFrame(final byte type, final ByteBuf content) {
+        super(content);
+        this.type = type;
+    }
+
+    static JobServerFrame ofInt(final ByteBufAllocator alloc, final byte type, final int value) {
+        return new JobServerFrame(type, alloc.buffer(Integer.BYTES).writeInt(value));
+    }
+
+    static JobServerFrame ofLong(final ByteBufAllocator alloc, final byte type, final long value) {
+        return new JobServerFrame(type, alloc.buffer(Long.BYTES).writeLong(value));
+    }
+
+    static JobServerFrame ofString(final ByteBufAllocator alloc, final byte type, final String value) {
+        final ByteBuf content = alloc.buffer(value.length());
+        content.writeCharSequence(value, CharsetUtil.UTF_8);
+        return new JobServerFrame(type, content);
+    }
+
+    static JobServerFrame ofEmpty(final byte type) {
+        return new JobServerFrame(type, Unpooled.EMPTY_BUFFER);
+    }
+
+    byte type() {
+        return type;
+    }
+
+    /**
+     * @return the content as a string (without consuming it)
+     */
+    String contentAsString() {
+        return content().toString(CharsetUtil.UTF_8);
+    }
+
+    /**
+     * @return the content as an int (without consuming it)
+     */
+    int contentAsInt() {
+        return content().getInt(content().readerIndex());
+    }
+
+    @Override
+    public JobServerFrame replace(final ByteBuf content) {
+        return new JobServerFrame(type, content);
+    }
+
+    @Override
+    public String toString() {
+        return "JobServerFrame(" + (char) type + ", " + content().readableBytes() + " bytes)";
+    }
+}
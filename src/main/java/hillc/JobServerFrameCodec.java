@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.MessageToMessageCodec;
+
+import java.util.List;
+
+/**
+ * Netty codec between JobServerFrames and ByteBufs. Inbound it expects length-stripped buffers, i.e. from the
+ * LengthFieldBasedFrameDecoder that addTo() puts in front of it, outbound it writes the length itself.
+ */
+@ChannelHandler.Sharable
+class JobServerFrameCodec extends MessageToMessageCodec<ByteBuf, JobServerFrame> {
+
+    static final JobServerFrameCodec INSTANCE = new JobServerFrameCodec();
+
+    private JobServerFrameCodec() {
+    }
+
+    /**
+     * Adds the full binary protocol stack to a pipeline.
+     *
+     * @param pipeline the pipeline
+     * @param before   the name of the handler to add before, i.e. the one that handles the frames
+     */
+    static void addTo(final ChannelPipeline pipeline, final String before) {
+        pipeline.addBefore(before, "frameDecoder", new LengthFieldBasedFrameDecoder(JobServerFrame.MAX_LENGTH, 0, Integer.BYTES, 0, Integer.BYTES))
+                .addBefore(before, "frameCodec", INSTANCE);
+    }
+
+    @Override
+    protected void encode(final ChannelHandlerContext ctx, final JobServerFrame frame, final List<Object> out) {
+        out.add(toWire(ctx.alloc(), frame));
+    }
+
+    /**
+     * Encodes a frame, length prefix and all, e.g. to pass on as is.
+     *
+     * @param alloc the allocator
+     * @param frame the frame (not consumed, nor released)
+     * @return the encoded frame
+     */
+    static ByteBuf toWire(final ByteBufAllocator alloc, final JobServerFrame frame) {
+        // Frames are small, so one copy into a single buffer beats a composite (and a separate length prefix)
+        final ByteBuf content = frame.content();
+        final int length = 1 + content.readableBytes();
+        return alloc.ioBuffer(Integer.BYTES + length)
+                .writeInt(length)
+                .writeByte(frame.type())
+                .writeBytes(content, content.readerIndex(), content.readableBytes());
+    }
+
+    @Override
+    protected void decode(final ChannelHandlerContext ctx, final ByteBuf msg, final List<Object> out) {
+        if (!msg.isReadable()) {
+            throw new CorruptedFrameException("Empty frame, without a type"); // i.e. a length of 0
+        }
+        final byte type = msg.readByte();
+        out.add(new JobServerFrame(type, msg.retainedSlice()));
+    }
+
+    /**
+     * Sits first in the server pipeline, and picks the protocol from the very first byte the client sends, before
+     * removing itself. Text clients are passed through untouched.
+     */
+    static class Negotiator extends ByteToMessageDecoder {
+        @Override
+        protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) {
+            if (in.getByte(in.readerIndex()) == JobServerFrame.HANDSHAKE) {
+                in.skipBytes(1);
+                addTo(ctx.pipeline(), "handler");
+            }
+            ctx.pipeline().remove(this); // Forwards anything else already read on to the next handler
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Soak test harness. Drives a locally running JobServer with N concurrent client connections, each submitting a job
+ * for a (not yet existing) temp file, which is then created after a delay drawn from the configured arrival
+ * distribution. The submit to DONE latency of every job is recorded, and the server's own stats are sampled (via the
+ * STATS! control request) throughout the run.
+ * <p>
+ * Results are written as JSON so that runs on the same host can be compared across versions, e.g.
+ * <pre>
+ * mvn exec:java -Dexec.mainClass="hillc.JobServer" -Djobserver.workIntervalSeconds=1
+ * mvn exec:java -Dexec.mainClass="hillc.JobServerLoadGenerator" -Dloadgen.clients=200 -Dloadgen.jobs=10000
+ * </pre>
+ * Configuration is via -Dloadgen.* system properties, see the statics below.
+ */
+public class JobServerLoadGenerator {
+
+    /**
+     * How long after submission each job's file "arrives"
+     */
+    enum Arrival {
+        FIXED, // always the mean
+        UNIFORM, // uniform over [0, 2 * mean)
+        EXPONENTIAL; // i.e. Poisson arrivals, long tailed
+
+        long nextDelayMillis(final long meanMillis) {
+            final double u = ThreadLocalRandom.current().nextDouble();
+            switch (this) {
+                case UNIFORM:
+                    return (long) (u * 2 * meanMillis);
+                case EXPONENTIAL:
+                    return (long) (-meanMillis * Math.log(1 - u));
+                default:
+                    return meanMillis;
+            }
+        }
+    }
+
+    // Configuration
+    private static final int PORT = Integer.getInteger("jobserver.port", 12345);
+    private static final int CLIENTS = Integer.getInteger("loadgen.clients", 50); // Concurrent connections
+    private static final int JOBS = Integer.getInteger("loadgen.jobs", 1000); // Total jobs to submit
+    private static final Arrival ARRIVAL = Arrival.valueOf(System.getProperty("loadgen.arrival", "EXPONENTIAL").toUpperCase());
+    private static final long ARRIVAL_MEAN_MILLIS = Long.getLong("loadgen.arrivalMeanMillis", 1000);
+    private static final long SAMPLE_INTERVAL_MILLIS = Long.getLong("loadgen.sampleIntervalMillis", 1000);
+    private static final long TIMEOUT_SECONDS = Long.getLong("loadgen.timeoutSeconds", 600); // Per job
+    private static final boolean BINARY = Boolean.getBoolean("loadgen.binary"); // Binary rather than text protocol
+    private static final JobServerCompression COMPRESSION = JobServerCompression.of(System.getProperty("loadgen.compression", "none")); // e.g. deflate
+    private static final String LABEL = System.getProperty("loadgen.label", "unlabelled"); // e.g. a git sha
+    private static final String OUTPUT = System.getProperty("loadgen.output", "loadgen-" + System.currentTimeMillis() + ".json");
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobServerLoadGenerator.class);
+    private static final Consumer<String> IGNORE_LOG = line -> {
+    };
+
+    /**
+     * Runs the load, and writes the results file.
+     *
+     * @param args (ignored)
+     * @throws Exception If the run could not complete
+     */
+    public static void main(String[] args) throws Exception {
+        final InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+        final Path dir = Files.createTempDirectory("jobserver-loadgen");
+        LOG.info("Driving {} with {} jobs over {} clients, {} arrivals (mean {}ms) in {}",
+                server, JOBS, CLIENTS, ARRIVAL, ARRIVAL_MEAN_MILLIS, dir);
+
+        final long[] latencies = new long[JOBS];
+        final boolean[] succeeded = new boolean[JOBS]; // i.e. DONE, with a return code of 0
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final List<Map<String, String>> samples = Collections.synchronizedList(new ArrayList<>());
+        final Semaphore inFlight = new Semaphore(CLIENTS);
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+        final Instant startedAt = Instant.now();
+        final long start = System.nanoTime();
+        try (JobServerClient client = new JobServerClient(server, BINARY, COMPRESSION)) {
+            // Sample the server side stats throughout
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    final JobServerClient.Reply reply = client.submit(Protocol.PROTO_CTRL + Protocol.REQUEST_STATS, IGNORE_LOG)
+                            .get(SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    final Map<String, String> sample = parseStats(reply.getValue());
+                    sample.put("elapsedMillis", Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                    samples.add(sample);
+                } catch (Exception e) {
+                    LOG.warn("Could not sample server stats", e);
+                }
+            }, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+            // Closed loop, at most CLIENTS jobs outstanding at any one time
+            final CountDownLatch finished = new CountDownLatch(JOBS);
+            for (int i = 0; i < JOBS; i++) {
+                inFlight.acquire();
+
+                final int job = i;
+                final Path file = dir.resolve("job-" + i);
+                final long submitted = System.nanoTime();
+                client.submit(file.toString(), IGNORE_LOG)
+                        .orTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .whenComplete((reply, e) -> {
+                            latencies[job] = System.nanoTime() - submitted;
+                            if (e != null) {
+                                LOG.warn("Job {} errored", job, e);
+                                errors.incrementAndGet();
+                            } else if (!reply.isDone() || reply.getReturnCode() != 0) {
+                                failed.incrementAndGet();
+                            } else {
+                                succeeded[job] = true;
+                            }
+                            inFlight.release();
+                            finished.countDown();
+                        });
+
+                scheduler.schedule(() -> {
+                    try {
+                        Files.createFile(file);
+                    } catch (IOException e) {
+                        LOG.warn("Could not create {}", file, e);
+                    }
+                }, ARRIVAL.nextDelayMillis(ARRIVAL_MEAN_MILLIS), TimeUnit.MILLISECONDS);
+            }
+            finished.await();
+        } finally {
+            scheduler.shutdownNow();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        writeResults(Paths.get(OUTPUT), startedAt, elapsed, latencies, succeeded, failed.get(), errors.get(), samples);
+        LOG.info("Wrote results to {}", OUTPUT);
+
+        try {
+            deleteAll(dir); // Including the files of any jobs that failed, so were never consumed
+        } catch (IOException e) {
+            LOG.warn("Could not clean up {}", dir, e);
+        }
+    }
+
+    /**
+     * Deletes a (flat) directory, and the files in it
+     *
+     * @param dir the directory
+     * @throws IOException If it could not be deleted
+     */
+    static void deleteAll(final Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    // The latency percentiles of interest, as a JSON object
+    private static String percentiles(final long[] sorted) {
+        return String.format("{\"count\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                sorted.length,
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 50)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 90)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 99)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 99.9)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 100)));
+    }
+
+    /**
+     * Parses a JobServer.stats() line
+     *
+     * @param stats the "key=value,..." line
+     * @return the keys and values, in order
+     */
+    static Map<String, String> parseStats(final String stats) {
+        final Map<String, String> map = new LinkedHashMap<>();
+        for (String pair : stats.split(",")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                map.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Nearest rank percentile
+     *
+     * @param sorted     the sorted values
+     * @param percentile in the range (0, 100]
+     * @return the percentile value
+     */
+    static long percentile(final long[] sorted, final double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * @param s a string
+     * @return the string as a JSON string literal, quotes and all
+     */
+    static String jsonString(final String s) {
+        final StringBuilder json = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    // Hand rolled JSON, all our values are numbers or strings
+    private static void writeResults(final Path output, final Instant startedAt, final long elapsedNanos,
+                                     final long[] latencies, final boolean[] succeeded, final int failed,
+                                     final int errors, final List<Map<String, String>> samples) throws IOException {
+        // Failed or errored jobs (e.g. timed out) aren't the latency we are after, so are reported on their own
+        final long[] sorted = IntStream.range(0, latencies.length).filter(i -> succeeded[i]).mapToLong(i -> latencies[i]).sorted().toArray();
+        final long[] unsuccessful = IntStream.range(0, latencies.length).filter(i -> !succeeded[i]).mapToLong(i -> latencies[i]).sorted().toArray();
+        final double elapsedSeconds = elapsedNanos / 1e9;
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf("  \"label\": %s,%n", jsonString(LABEL));
+            out.printf("  \"protocol\": \"%s\",%n", BINARY ? "binary" : "text");
+            out.printf("  \"compression\": \"%s\",%n", COMPRESSION == null ? "none" : COMPRESSION.optionValue());
+            out.printf("  \"startedAt\": \"%s\",%n", startedAt);
+            out.printf("  \"config\": {\"clients\": %d, \"jobs\": %d, \"arrival\": \"%s\", \"arrivalMeanMillis\": %d},%n",
+                    CLIENTS, JOBS, ARRIVAL, ARRIVAL_MEAN_MILLIS);
+            out.printf(Locale.ROOT, "  \"summary\": {\"elapsedMillis\": %d, \"throughputPerSecond\": %.2f, \"failed\": %d, \"errors\": %d},%n",
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos), latencies.length / elapsedSeconds, failed, errors);
+            out.printf("  \"latencyMillis\": %s,%n", percentiles(sorted));
+            out.printf("  \"failedLatencyMillis\": %s,%n", percentiles(unsuccessful));
+            out.println("  \"samples\": [");
+            synchronized (samples) {
+                for (Iterator<Map<String, String>> it = samples.iterator(); it.hasNext(); ) {
+                    final Map<String, String> next = it.next();
+                    final StringJoiner sample = new StringJoiner(", ", "    {", it.hasNext() ? "}," : "}");
+                    next.forEach((k, v) -> sample.add("\"" + k + "\": " + v));
+                    out.println(sample);
+                }
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds back a job's repeated client log lines, e.g. the "Checking for /tmp/foo" of every run of a job waiting all day,
+ * in favour of a "Last message repeated N times" summary, sent once the job logs something else, or every so often.
+ * <p>
+ * Repeats are spotted from the unformatted event, i.e. the same level, message pattern and arguments, so a held back
+ * line costs no formatting, encoding or socket write.
+ */
+@NotThreadSafe // Only used by the job's (serial) runs
+class JobServerLogRepeats {
+
+    /**
+     * How much of its job's log a client wants, chosen with the LOG! option, e.g. "_CLOG!quiet\n" where _ is ascii 30
+     */
+    enum Verbosity {
+        ALL, // Every line
+        SUMMARY, // Repeats summarised
+        QUIET; // No log lines at all, just the replies
+
+        /**
+         * @param name the option value, e.g. "summary"
+         * @return the verbosity, or null if we don't know it
+         */
+        static Verbosity of(final String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * What to do with a log event
+     */
+    enum Action {
+        SEND, // Send it
+        HOLD, // Hold it back
+        SUMMARISE, // Hold it back, but send a summary of the repeats so far
+        SUMMARISE_THEN_SEND // Send a summary of the previous message's repeats, then this one
+    }
+
+    static final String SUMMARY_MESSAGE = "Last message repeated {} times";
+
+    // Lines held back, across every job, for the stats
+    private static final LongAdder HELD_BACK = new LongAdder();
+
+    private final Verbosity verbosity;
+    private final long summaryNanos;
+    private final LongSupplier clock;
+
+    // The last message sent, when we last sent it (or a summary of it), and its repeats since
+    private ILoggingEvent last = null;
+    private long lastSentNanos;
+    private int repeats = 0;
+    private ILoggingEvent repeated = null; // The message those repeats are of, i.e. last until something else is logged
+
+    /**
+     * Constructor
+     *
+     * @param verbosity      how much of the log to send, SUMMARY or QUIET (ALL needs no help)
+     * @param summarySeconds how often to summarise an unbroken run of repeats
+     * @param clock          nanosecond clock, e.g. System::nanoTime
+     */
+    JobServerLogRepeats(final Verbosity verbosity, final int summarySeconds, final LongSupplier clock) {
+        this.verbosity = Objects.requireNonNull(verbosity);
+        this.summaryNanos = TimeUnit.SECONDS.toNanos(summarySeconds);
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    /**
+     * @return the number of client log lines held back so far, by every job
+     */
+    static long getHeldBack() {
+        return HELD_BACK.sum();
+    }
+
+    /**
+     * @param event the job's next log event
+     * @return what to do with it, see takeRepeats() for the summary
+     */
+    Action offer(final ILoggingEvent event) {
+        if (verbosity == Verbosity.QUIET) {
+            HELD_BACK.increment();
+            return Action.HOLD;
+        }
+
+        final long now = clock.getAsLong();
+        if (last != null && isRepeat(last, event)) {
+            HELD_BACK.increment();
+            repeats++;
+            repeated = last;
+            if (now - lastSentNanos < summaryNanos) {
+                return Action.HOLD;
+            }
+            lastSentNanos = now;
+            return Action.SUMMARISE;
+        }
+
+        last = event;
+        lastSentNanos = now;
+        return repeats > 0 ? Action.SUMMARISE_THEN_SEND : Action.SEND;
+    }
+
+    /**
+     * @return the message that was repeated, for the summary, e.g. to log it at the same level (null if no repeats)
+     */
+    ILoggingEvent getRepeated() {
+        return repeats > 0 ? repeated : null;
+    }
+
+    /**
+     * @return the repeats held back since the last summary, now summarised
+     */
+    int takeRepeats() {
+        final int n = repeats;
+        repeats = 0;
+        return n;
+    }
+
+    // Same level, pattern and arguments, i.e. would format the same (bar the timestamp)
+    private static boolean isRepeat(final ILoggingEvent a, final ILoggingEvent b) {
+        return a.getLevel() == b.getLevel()
+                && Objects.equals(a.getMessage(), b.getMessage())
+                && Arrays.equals(a.getArgumentArray(), b.getArgumentArray())
+                && a.getThrowableProxy() == null && b.getThrowableProxy() == null; // Always send stack traces
+    }
+}
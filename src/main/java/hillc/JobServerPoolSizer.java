@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Grows and shrinks the worker pool's core size, between fixed bounds, from how far the queue head has fallen behind
+ * and how busy the workers have been since the last tick(). i.e. workers blocked on slow I/O leave the queue lagging
+ * with every thread busy, so we add threads, and when the queue keeps up with threads to spare we take them away again.
+ * <p>
+ * Hysteresis: the pool only grows after GROW_TICKS lagging ticks in a row, and only shrinks (by one thread at a time)
+ * after SHRINK_TICKS quiet ticks in a row, so it doesn't flap on a momentary spike or lull.
+ */
+@NotThreadSafe // Only called from the stats Timer thread
+class JobServerPoolSizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobServerPoolSizer.class);
+
+    // Hysteresis
+    static final int GROW_TICKS = 2; // Lagging ticks in a row before we grow
+    static final int SHRINK_TICKS = 10; // Quiet ticks in a row before we shrink
+    static final double GROW_BUSY_RATIO = 0.75; // Only grow if the workers are this busy, else more threads won't help
+
+    private final BusyTimedExecutor pool;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long growLagMillis;
+    private final double shrinkBusyRatio;
+    private final LongSupplier clock;
+    private final LongSupplier lagMillis;
+
+    private long lastTickNanos;
+    private long lastBusyNanos;
+    private int laggingTicks = 0;
+    private int quietTicks = 0;
+
+    // Metrics, read by stats()
+    private volatile double busyRatio = 0;
+    private volatile long grows = 0;
+    private volatile long shrinks = 0;
+
+    /**
+     * Constructor
+     *
+     * @param pool            the pool to size, its current core size is clamped to the bounds
+     * @param minThreads      the smallest core size
+     * @param maxThreads      the largest core size
+     * @param growLagMillis   grow once the queue head is this far behind
+     * @param shrinkBusyRatio shrink once the workers are less busy than this, e.g. 0.5, and the queue is on time
+     * @param clock           nanosecond clock, e.g. System::nanoTime
+     */
+    JobServerPoolSizer(final BusyTimedExecutor pool, final int minThreads, final int maxThreads,
+                       final long growLagMillis, final double shrinkBusyRatio, final LongSupplier clock) {
+        this(pool, minThreads, maxThreads, growLagMillis, shrinkBusyRatio, clock, () -> queueLagMillis(pool));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param pool            the pool to size, its current core size is clamped to the bounds
+     * @param minThreads      the smallest core size
+     * @param maxThreads      the largest core size
+     * @param growLagMillis   grow once the queue head is this far behind
+     * @param shrinkBusyRatio shrink once the workers are less busy than this, e.g. 0.5, and the queue is on time
+     * @param clock           nanosecond clock, e.g. System::nanoTime
+     * @param lagMillis       how far the queue head is behind, e.g. queueLagMillis() of the pool
+     */
+    JobServerPoolSizer(final BusyTimedExecutor pool, final int minThreads, final int maxThreads,
+                       final long growLagMillis, final double shrinkBusyRatio, final LongSupplier clock,
+                       final LongSupplier lagMillis) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Bad bounds: " + minThreads + " to " + maxThreads);
+        }
+        this.pool = Objects.requireNonNull(pool);
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.growLagMillis = growLagMillis;
+        this.shrinkBusyRatio = shrinkBusyRatio;
+        this.clock = Objects.requireNonNull(clock);
+        this.lagMillis = Objects.requireNonNull(lagMillis);
+        pool.setCorePoolSize(Math.max(minThreads, Math.min(maxThreads, pool.getCorePoolSize())));
+        this.lastTickNanos = clock.getAsLong();
+        this.lastBusyNanos = pool.getBusyNanos(lastTickNanos);
+    }
+
+    /**
+     * Peeps at the head of the work queue, and reports how far it has "fallen behind" its scheduled time.
+     *
+     * @param pool the pool
+     * @return the lag in milliseconds, or 0 if the queue is empty or on time
+     */
+    static long queueLagMillis(final ScheduledThreadPoolExecutor pool) {
+        final Runnable head = pool.getQueue().peek();
+        if (head instanceof ScheduledFuture) {
+            final long delay = ((ScheduledFuture<?>) head).getDelay(TimeUnit.MILLISECONDS);
+            if (delay < 0) {
+                return -delay;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Measures, and resizes the pool if need be. Call this at a regular interval, e.g. every second.
+     */
+    void tick() {
+        final long now = clock.getAsLong();
+        final long busy = pool.getBusyNanos(now);
+        final int core = pool.getCorePoolSize();
+        final long elapsed = Math.max(now - lastTickNanos, 1);
+        busyRatio = Math.min((double) (busy - lastBusyNanos) / (elapsed * core), 1.0);
+        lastTickNanos = now;
+        lastBusyNanos = busy;
+
+        final long lag = lagMillis.getAsLong();
+        if (lag >= growLagMillis && busyRatio >= GROW_BUSY_RATIO) {
+            laggingTicks++;
+            quietTicks = 0;
+        } else if (lag == 0 && busyRatio < shrinkBusyRatio) {
+            quietTicks++;
+            laggingTicks = 0;
+        } else {
+            laggingTicks = 0;
+            quietTicks = 0;
+        }
+
+        if (laggingTicks >= GROW_TICKS && core < maxThreads) {
+            final int size = Math.min(maxThreads, core + Math.max(1, core / 2));
+            LOG.info("Growing worker pool from {} to {} threads, queue head is {}ms behind with workers {}% busy",
+                    core, size, lag, Math.round(busyRatio * 100));
+            pool.setCorePoolSize(size);
+            grows++;
+            laggingTicks = 0;
+        } else if (quietTicks >= SHRINK_TICKS && core > minThreads) {
+            LOG.info("Shrinking worker pool from {} to {} threads, queue is on time with workers {}% busy",
+                    core, core - 1, Math.round(busyRatio * 100));
+            pool.setCorePoolSize(core - 1);
+            shrinks++;
+            quietTicks = 0;
+        }
+    }
+
+    /**
+     * @return the fraction of the pool's time spent running work, over the last tick
+     */
+    double getBusyRatio() {
+        return busyRatio;
+    }
+
+    /**
+     * @return the number of times the pool has been grown
+     */
+    long getGrows() {
+        return grows;
+    }
+
+    /**
+     * @return the number of times the pool has been shrunk
+     */
+    long getShrinks() {
+        return shrinks;
+    }
+
+    /**
+     * A ScheduledThreadPoolExecutor that keeps count of the time its threads spend running work.
+     */
+    @ThreadSafe
+    static class BusyTimedExecutor extends ScheduledThreadPoolExecutor {
+        private final LongSupplier clock;
+        private final LongAdder completedNanos = new LongAdder();
+        private final Map<Thread, Long> runningSince = new ConcurrentHashMap<>();
+
+        /**
+         * Constructor
+         *
+         * @param corePoolSize the initial number of threads
+         * @param clock        nanosecond clock, e.g. System::nanoTime
+         */
+        BusyTimedExecutor(final int corePoolSize, final LongSupplier clock) {
+            super(corePoolSize);
+            this.clock = Objects.requireNonNull(clock);
+        }
+
+        @Override
+        protected void beforeExecute(final Thread t, final Runnable r) {
+            super.beforeExecute(t, r);
+            runningSince.put(t, clock.getAsLong());
+        }
+
+        @Override
+        protected void afterExecute(final Runnable r, final Throwable t) {
+            final Long start = runningSince.remove(Thread.currentThread());
+            if (start != null) {
+                completedNanos.add(clock.getAsLong() - start);
+            }
+            super.afterExecute(r, t);
+        }
+
+        /**
+         * @param now the current clock time
+         * @return the total time spent running work, including work still running now
+         */
+        long getBusyNanos(final long now) {
+            long busy = completedNanos.sum();
+            for (Long start : runningSince.values()) {
+                busy += now - start;
+            }
+            return busy;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Per client (source identity) admission control and fair sharing of worker time, so one misbehaving script cannot
+ * flood the worker pool and make everyone else's jobs fall behind.
+ * <p>
+ * Admission is a token bucket per client, implemented as GCRA (i.e. a single "theoretical arrival time" per client,
+ * advanced by compare-and-set) so the channelRead path never takes a lock. Fair sharing tracks each client's recent
+ * worker time, see JobServerWorkerFairShare.
+ */
+@ThreadSafe
+class JobServerRateLimiter {
+
+    /**
+     * Result of admit() when the client must be turned away
+     */
+    static final long REJECT = -1;
+
+    /**
+     * Per client state, all lock-free
+     */
+    static final class Client {
+        private final AtomicLong theoreticalArrivalNanos = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicInteger jobs = new AtomicInteger(); // Outstanding, i.e. admitted but not yet finished
+        private final AtomicLong busyNanos = new AtomicLong(); // Recent worker time, decayed by decay()
+        private final AtomicInteger holds = new AtomicInteger(); // Callers between client() and release(), -1 once forgotten
+        private final String identity;
+
+        private Client(final String identity) {
+            this.identity = identity;
+        }
+
+        String getIdentity() {
+            return identity;
+        }
+
+        int getJobs() {
+            return jobs.get();
+        }
+
+        // Stops decay() forgetting us, unless it already has
+        private boolean hold() {
+            while (true) {
+                final int held = holds.get();
+                if (held < 0) {
+                    return false;
+                }
+                if (holds.compareAndSet(held, held + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicLong totalBusyNanos = new AtomicLong();
+    private final AtomicInteger activeClients = new AtomicInteger(); // Clients with outstanding jobs
+    private final long emissionIntervalNanos; // Time to earn one token
+    private final long burstToleranceNanos; // How far ahead of schedule a client may be
+    private final long maxDelayNanos; // Longest we will delay admission, rather than reject
+    private final LongSupplier clock;
+    private volatile boolean contended = false;
+
+    /**
+     * Constructor
+     *
+     * @param perSecond      the sustained submissions per second allowed per client, or 0 for unlimited
+     * @param burst          the submissions a client may make at once, after being quiet
+     * @param maxDelayMillis the longest admission may be delayed for, beyond which we reject (0 means always reject)
+     * @param clock          nanosecond time source, normally System::nanoTime
+     */
+    JobServerRateLimiter(final double perSecond, final int burst, final long maxDelayMillis, final LongSupplier clock) {
+        this.emissionIntervalNanos = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+        this.burstToleranceNanos = emissionIntervalNanos * Math.max(burst - 1, 0);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * Looks up (or creates) the state for a client, and holds on to it for one job, i.e. it won't be forgotten by
+     * decay() until release()d, or the job finished().
+     *
+     * @param identity the client identity, e.g. its peer address
+     * @return the client state
+     */
+    Client client(final String identity) {
+        while (true) {
+            Client client = clients.get(identity); // Lock-free fast path, for an already known client
+            if (client == null) {
+                client = clients.computeIfAbsent(identity, Client::new);
+            }
+            if (client.hold()) {
+                return client;
+            }
+            // Else decay() is forgetting it right now, so look again, for a fresh one
+        }
+    }
+
+    /**
+     * Lets go of a client from client(), without a job, e.g. as it was rejected.
+     *
+     * @param client the client
+     */
+    void release(final Client client) {
+        client.holds.decrementAndGet();
+    }
+
+    /**
+     * Attempts to admit one new job for the client, taking a token from its bucket.
+     *
+     * @param client the client
+     * @return 0 to admit now, a delay in nanos to admit later, or REJECT
+     */
+    long admit(final Client client) {
+        if (emissionIntervalNanos == 0) {
+            return 0; // Unlimited
+        }
+
+        final long now = clock.getAsLong();
+        while (true) {
+            final long tat = client.theoreticalArrivalNanos.get();
+            final long base = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+            final long delay = base - now - burstToleranceNanos;
+            if (delay > maxDelayNanos) {
+                return REJECT;
+            }
+            if (client.theoreticalArrivalNanos.compareAndSet(tat, base + emissionIntervalNanos)) {
+                return Math.max(delay, 0);
+            }
+        }
+    }
+
+    /**
+     * Marks a job as started, call finished() once it is over.
+     *
+     * @param client the owning client
+     */
+    void started(final Client client) {
+        if (client.jobs.getAndIncrement() == 0) {
+            activeClients.incrementAndGet();
+        }
+    }
+
+    /**
+     * Marks a job as finished, and release()s the client.
+     *
+     * @param client the owning client
+     */
+    void finished(final Client client) {
+        if (client.jobs.decrementAndGet() == 0) {
+            activeClients.decrementAndGet();
+        }
+        release(client);
+    }
+
+    /**
+     * Records worker time spent on a client's behalf.
+     *
+     * @param client the owning client
+     * @param nanos  the time spent
+     */
+    void worked(final Client client, final long nanos) {
+        client.busyNanos.addAndGet(nanos);
+        totalBusyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Whether a client has had more than its fair share of recent worker time, while the pool is contended. Such a
+     * client's jobs should step aside for a while.
+     *
+     * @param client the client
+     * @return true if it should yield
+     */
+    boolean overShare(final Client client) {
+        final int active = activeClients.get();
+        return contended && active > 1 && client.busyNanos.get() * active > totalBusyNanos.get();
+    }
+
+    /**
+     * Called periodically, halves everyone's recent worker time (so history fades), forgets idle clients, and
+     * records whether the pool is currently contended.
+     *
+     * @param contended true if the worker pool is falling behind
+     */
+    void decay(final boolean contended) {
+        this.contended = contended;
+
+        final long now = clock.getAsLong();
+        long total = 0;
+        for (Client client : clients.values()) {
+            total += client.busyNanos.updateAndGet(busy -> busy / 2);
+            // Bucket full and no one holding it, so nothing to remember. N.B. Atomically, as client() may be racing us
+            clients.computeIfPresent(client.identity, (identity, current) -> {
+                final long tat = current.theoreticalArrivalNanos.get();
+                final boolean full = tat == Long.MIN_VALUE || tat - now < 0;
+                return full && current.holds.compareAndSet(0, -1) ? null : current;
+            });
+        }
+        totalBusyNanos.set(total);
+    }
+
+    /**
+     * @return the number of clients with outstanding jobs
+     */
+    int getActiveClients() {
+        return activeClients.get();
+    }
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Every job the server is currently holding, for introspection (see Protocol.REQUEST_JOBS), so we can tell what is
+ * behind a lagging queue without walking the worker pool's (locked) work queue.
+ * <p>
+ * Each job records its own state as it goes (it decorates the real worker), and a snapshot() is just a weakly
+ * consistent walk of a ConcurrentHashMap, so neither side ever blocks the other, or the scheduler.
+ */
+@ThreadSafe
+final class JobServerRegistry {
+
+    /**
+     * Where a job is, as of a snapshot
+     */
+    enum State {
+        QUEUED, // Due to run, i.e. waiting for a worker thread (new, delayed by admission control, or fallen behind)
+        RUNNING, // In doWork() right now
+        SLEEPING // Waiting for its next scheduled run
+    }
+
+    private final ConcurrentHashMap<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    /**
+     * Constructor
+     *
+     * @param clock nanosecond clock, e.g. System::nanoTime
+     */
+    JobServerRegistry(final LongSupplier clock) {
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    /**
+     * Tracks a new job, until remove()d.
+     *
+     * @param id         the job's id
+     * @param client     the owning client's identity
+     * @param worker     the real worker logic
+     * @param output     the client's output, to see what it has queued
+     * @param delayNanos how long admission control is holding the job back for, 0 if not
+     * @return the job, to run in place of the worker
+     */
+    Job register(final long id, final String client, final JobServerWorker worker, final JobServerClientOutput output,
+                 final long delayNanos) {
+        final long now = clock.getAsLong();
+        final Job job = new Job(id, client, worker, output, now, now + delayNanos);
+        jobs.put(id, job);
+        return job;
+    }
+
+    /**
+     * Stops tracking a job, e.g. once its client has closed.
+     *
+     * @param job the job
+     */
+    void remove(final Job job) {
+        jobs.remove(job.id, job);
+    }
+
+    /**
+     * @return the number of jobs being tracked
+     */
+    int size() {
+        return jobs.size();
+    }
+
+    /**
+     * A point in time (give or take the jobs that come and go while we look) view of every job.
+     *
+     * @param limit how many of the oldest jobs, and of the busiest clients, to list
+     * @return the snapshot
+     */
+    Snapshot snapshot(final int limit) {
+        final long now = clock.getAsLong();
+        final EnumMap<State, Integer> states = new EnumMap<>(State.class);
+        for (State state : State.values()) {
+            states.put(state, 0);
+        }
+        final Map<String, Integer> clients = new HashMap<>();
+        final Comparator<Job> byAge = Comparator.comparingLong(job -> job.submittedNanos);
+        final PriorityQueue<Job> oldest = new PriorityQueue<>(byAge.reversed()); // Youngest at the head, to evict
+        long bytesQueued = 0;
+        for (Job job : jobs.values()) {
+            states.merge(job.getState(now), 1, Integer::sum);
+            clients.merge(job.client, 1, Integer::sum);
+            bytesQueued += job.output.getBytesQueued();
+            if (limit > 0) {
+                oldest.add(job);
+                if (oldest.size() > limit) {
+                    oldest.poll();
+                }
+            }
+        }
+
+        final List<Job> oldestFirst = new ArrayList<>(oldest);
+        oldestFirst.sort(byAge);
+        final List<Map.Entry<String, Integer>> busiest = new ArrayList<>(clients.entrySet());
+        busiest.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return new Snapshot(now, states, oldestFirst, busiest.subList(0, Math.min(limit, busiest.size())),
+                clients.size(), bytesQueued);
+    }
+
+    /**
+     * A tracked job, which decorates the real worker to keep note of its state.
+     */
+    @ThreadSafe
+    final class Job implements JobServerWorker {
+        private final long id;
+        private final String client;
+        private final JobServerWorker delegate;
+        private final JobServerClientOutput output;
+        private final long submittedNanos;
+        private volatile long dueNanos; // When it next wants a worker thread
+        private volatile boolean running = false;
+        private volatile int runs = 0; // Only written from (the serial) doWork()
+
+        private Job(final long id, final String client, final JobServerWorker delegate, final JobServerClientOutput output,
+                    final long submittedNanos, final long dueNanos) {
+            this.id = id;
+            this.client = Objects.requireNonNull(client);
+            this.delegate = Objects.requireNonNull(delegate);
+            this.output = Objects.requireNonNull(output);
+            this.submittedNanos = submittedNanos;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public String getName() {
+            return delegate.getName();
+        }
+
+        @Override
+        public boolean doWork(final Logger clientLog) throws Exception {
+            running = true;
+            runs++;
+            try {
+                final boolean done = delegate.doWork(clientLog);
+                if (!done) {
+                    dueNanos = clock.getAsLong() + TimeUnit.SECONDS.toNanos(delegate.getRescheduleInterval());
+                }
+                return done;
+            } finally {
+                running = false;
+            }
+        }
+
+        @Override
+        public int getReturnCode() {
+            return delegate.getReturnCode();
+        }
+
+        @Override
+        public int getRescheduleInterval() {
+            return delegate.getRescheduleInterval();
+        }
+
+        @Override
+        public boolean isNonBlocking() {
+            return delegate.isNonBlocking();
+        }
+
+        @Override
+        public void cancel() {
+            delegate.cancel();
+        }
+
+        /**
+         * @return the job's id
+         */
+        long getId() {
+            return id;
+        }
+
+        /**
+         * @return the owning client's identity
+         */
+        String getClient() {
+            return client;
+        }
+
+        /**
+         * @return the number of times it has been run
+         */
+        int getRuns() {
+            return runs;
+        }
+
+        /**
+         * @param now the current clock time
+         * @return the job's state
+         */
+        State getState(final long now) {
+            return running ? State.RUNNING : now >= dueNanos ? State.QUEUED : State.SLEEPING;
+        }
+
+        /**
+         * @param now the current clock time
+         * @return how long ago it was submitted, in milliseconds
+         */
+        long getAgeMillis(final long now) {
+            return TimeUnit.NANOSECONDS.toMillis(now - submittedNanos);
+        }
+
+        /**
+         * @param now the current clock time
+         * @return how long it has been due to run, in milliseconds, 0 if not yet due (or running)
+         */
+        long getLateMillis(final long now) {
+            return running ? 0 : Math.max(TimeUnit.NANOSECONDS.toMillis(now - dueNanos), 0);
+        }
+    }
+
+    /**
+     * The result of snapshot(), which renders as lines of "key=value ..." text.
+     */
+    @Immutable
+    static final class Snapshot {
+        private final long takenNanos;
+        private final Map<State, Integer> states;
+        private final List<Job> oldest;
+        private final List<Map.Entry<String, Integer>> busiest;
+        private final int clients;
+        private final long bytesQueued;
+
+        private Snapshot(final long takenNanos, final Map<State, Integer> states, final List<Job> oldest,
+                         final List<Map.Entry<String, Integer>> busiest, final int clients, final long bytesQueued) {
+            this.takenNanos = takenNanos;
+            this.states = Collections.unmodifiableMap(states);
+            this.oldest = Collections.unmodifiableList(oldest);
+            this.busiest = Collections.unmodifiableList(busiest);
+            this.clients = clients;
+            this.bytesQueued = bytesQueued;
+        }
+
+        /**
+         * @param state a state
+         * @return the number of jobs in it
+         */
+        int count(final State state) {
+            return states.get(state);
+        }
+
+        /**
+         * @return the oldest jobs, oldest first
+         */
+        List<Job> getOldest() {
+            return oldest;
+        }
+
+        /**
+         * @return the clients with the most jobs, and how many, busiest first
+         */
+        List<Map.Entry<String, Integer>> getBusiest() {
+            return busiest;
+        }
+
+        /**
+         * @return the output bytes waiting to go out to all the clients
+         */
+        long getBytesQueued() {
+            return bytesQueued;
+        }
+
+        /**
+         * @return a summary line, then one line per old job, then one per busy client
+         */
+        List<String> toLines() {
+            final List<String> lines = new ArrayList<>();
+            final StringBuilder summary = new StringBuilder("jobs");
+            int total = 0;
+            for (Map.Entry<State, Integer> entry : states.entrySet()) {
+                summary.append(' ').append(entry.getKey().name().toLowerCase(Locale.ROOT)).append('=').append(entry.getValue());
+                total += entry.getValue();
+            }
+            lines.add(summary.append(" total=").append(total).append(" clients=").append(clients)
+                    .append(" bytesQueued=").append(bytesQueued).toString());
+            for (Job job : oldest) {
+                lines.add("job id=" + job.id + " state=" + job.getState(takenNanos).name().toLowerCase(Locale.ROOT)
+                        + " ageMillis=" + job.getAgeMillis(takenNanos) + " lateMillis=" + job.getLateMillis(takenNanos)
+                        + " runs=" + job.runs + " client=" + job.client + " name=" + job.getName());
+            }
+            for (Map.Entry<String, Integer> entry : busiest) {
+                lines.add("client id=" + entry.getKey() + " jobs=" + entry.getValue());
+            }
+            return lines;
+        }
+    }
+}
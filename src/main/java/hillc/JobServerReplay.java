@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Replays a workload recorded by JobServerTrace (-Djobserver.trace=...) against a locally running JobServer, with the
+ * original submission timing, at 1x or faster.
+ * <p>
+ * As the demo worker completes once its file appears, each DONE job's file is created shortly before its recorded
+ * completion time (so the replayed server finds it on the same check as the original did), whereas FAIL or abandoned
+ * jobs are simply hung up on at their recorded end. Each job is replayed with the command (e.g. BULK!) and options it
+ * was recorded with, and by default its targets are rewritten to temp files, so production paths are never touched.
+ * Jobs that can't be replayed, e.g. manifests (whose contents weren't recorded), are skipped.
+ * <pre>
+ * mvn exec:java -Dexec.mainClass="hillc.JobServerReplay" -Dreplay.trace=/tmp/prod.trace -Dreplay.speed=10
+ * </pre>
+ * Configuration is via -Dreplay.* system properties, see the statics below.
+ */
+public class JobServerReplay {
+
+    // Configuration
+    private static final int PORT = Integer.getInteger("jobserver.port", 12345);
+    private static final String TRACE = System.getProperty("replay.trace", "jobserver.trace");
+    private static final double SPEED = Double.parseDouble(System.getProperty("replay.speed", "1")); // 1x or faster
+    private static final long ARRIVAL_LEAD_MILLIS = Long.getLong("replay.arrivalLeadMillis", 1000); // Keep below the server's work interval
+    private static final boolean REWRITE_PAYLOADS = Boolean.parseBoolean(System.getProperty("replay.rewritePayloads", "true"));
+    private static final String LABEL = System.getProperty("replay.label", "unlabelled"); // e.g. a git sha
+    private static final String OUTPUT = System.getProperty("replay.output", "replay-" + System.currentTimeMillis() + ".json");
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobServerReplay.class);
+
+    /**
+     * A recorded job, i.e. its submission and completion records merged
+     */
+    static final class Job {
+        final long jobId;
+        final long submittedMicros;
+        final String payload;
+        final JobServerRequest request;
+        long completedMicros = -1; // Still running when the recording stopped
+        JobServerTrace.Outcome outcome = JobServerTrace.Outcome.CLOSED;
+        long bytesSent;
+
+        Job(final long jobId, final long submittedMicros, final String payload) {
+            this.jobId = jobId;
+            this.submittedMicros = submittedMicros;
+            this.payload = payload;
+            this.request = JobServerRequest.parse(payload);
+        }
+    }
+
+    /**
+     * Replays the trace, and writes the results file.
+     *
+     * @param args (ignored)
+     * @throws Exception If the replay could not complete
+     */
+    public static void main(String[] args) throws Exception {
+        if (SPEED < 1) {
+            throw new IllegalArgumentException("replay.speed must be 1 or more, not " + SPEED);
+        }
+
+        final List<Job> jobs = load(Paths.get(TRACE));
+        final int recorded = jobs.size();
+        jobs.removeIf(job -> !isReplayable(job.request));
+        if (jobs.size() < recorded) {
+            LOG.warn("Skipping {} of {} jobs, that can't be replayed", recorded - jobs.size(), recorded);
+        }
+        final InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+        final Path dir = Files.createTempDirectory("jobserver-replay");
+        LOG.info("Replaying {} jobs from {} against {} at {}x", jobs.size(), TRACE, server, SPEED);
+
+        final long[] latencies = new long[jobs.size()];
+        final AtomicInteger mismatched = new AtomicInteger(); // Replayed outcome differs from the recording
+        final CountDownLatch finished = new CountDownLatch(jobs.size());
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+        final long start = System.nanoTime();
+        try (JobServerClient client = new JobServerClient(server)) {
+            for (int i = 0; i < jobs.size(); i++) {
+                final int index = i;
+                final Job job = jobs.get(i);
+                final List<Path> files = files(job, REWRITE_PAYLOADS ? dir : null);
+                final String request = replayRequest(job.request, files);
+                final long submitAt = scaledMillis(job.submittedMicros);
+                final long endAt = scaledMillis(job.completedMicros);
+
+                // Make the file "arrive" just before the recorded completion, possibly even before submission
+                final long arriveAt = endAt - ARRIVAL_LEAD_MILLIS;
+                final boolean arrivesFirst = job.outcome == JobServerTrace.Outcome.DONE && arriveAt <= submitAt;
+                if (job.outcome == JobServerTrace.Outcome.DONE && !arrivesFirst) {
+                    scheduler.schedule(() -> files.forEach(JobServerReplay::arrive), arriveAt, TimeUnit.MILLISECONDS);
+                }
+
+                scheduler.schedule(() -> {
+                    if (arrivesFirst) {
+                        files.forEach(JobServerReplay::arrive);
+                    }
+
+                    final long submitted = System.nanoTime();
+                    final CompletableFuture<JobServerClient.Reply> reply = client.submit(request, line -> {
+                    });
+                    reply.whenComplete((r, e) -> {
+                        latencies[index] = System.nanoTime() - submitted;
+                        if (job.outcome == JobServerTrace.Outcome.DONE ? r == null || !r.isDone() : r != null) {
+                            mismatched.incrementAndGet();
+                        }
+                        finished.countDown();
+                    });
+
+                    // Hang up on anything that didn't complete normally, as the original client (or server) did
+                    if (job.outcome != JobServerTrace.Outcome.DONE) {
+                        scheduler.schedule(() -> reply.cancel(false), Math.max(0, endAt - submitAt), TimeUnit.MILLISECONDS);
+                    }
+                }, submitAt, TimeUnit.MILLISECONDS);
+            }
+            finished.await();
+        } finally {
+            scheduler.shutdownNow();
+        }
+
+        writeResults(Paths.get(OUTPUT), System.nanoTime() - start, jobs, latencies, mismatched.get());
+        LOG.info("Wrote results to {}", OUTPUT);
+
+        try {
+            JobServerLoadGenerator.deleteAll(dir);
+        } catch (IOException e) {
+            LOG.warn("Could not clean up {}", dir, e);
+        }
+    }
+
+    /**
+     * @param request a recorded request
+     * @return if we can replay it, i.e. it is a job whose targets we know, and so can make arrive
+     */
+    static boolean isReplayable(final JobServerRequest request) {
+        return request.getCommand() == null || Protocol.REQUEST_BULK.equals(request.getCommand())
+                || Protocol.REQUEST_CHECKSUM.equals(request.getCommand());
+    }
+
+    /**
+     * @param job a replayable job
+     * @param dir where to rewrite its targets to, or null to use them as recorded
+     * @return the files the replayed job waits on, i.e. that must arrive for it to complete
+     */
+    static List<Path> files(final Job job, final Path dir) {
+        final List<String> targets = Protocol.REQUEST_BULK.equals(job.request.getCommand())
+                ? Arrays.stream(job.request.getBody().split(String.valueOf(Protocol.LINE_ENDING)))
+                .map(String::trim).filter(s -> !s.isEmpty()).distinct().collect(Collectors.toList())
+                : Collections.singletonList(job.request.getBody());
+        if (dir == null) {
+            return targets.stream().map(Paths::get).collect(Collectors.toList());
+        }
+        final List<Path> files = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            files.add(dir.resolve(targets.size() == 1 ? "job-" + job.jobId : "job-" + job.jobId + "-" + i));
+        }
+        return files;
+    }
+
+    /**
+     * @param request a recorded request
+     * @param files   its (possibly rewritten) targets
+     * @return the request to replay, i.e. the same command and options, for the given targets
+     */
+    static String replayRequest(final JobServerRequest request, final List<Path> files) {
+        final StringBuilder replay = new StringBuilder();
+        request.getOptions().forEach((name, value) -> {
+            if (!Protocol.OPTION_COMPRESS.equals(name)) { // Our client isn't set up to decompress the replies
+                replay.append(Protocol.PROTO_CTRL).append(name).append(value).append(Protocol.LINE_ENDING);
+            }
+        });
+        if (request.getCommand() != null) {
+            replay.append(Protocol.PROTO_CTRL).append(request.getCommand());
+        }
+        return replay.append(files.stream().map(Path::toString)
+                .collect(Collectors.joining(String.valueOf(Protocol.LINE_ENDING)))).toString();
+    }
+
+    /**
+     * Reads a trace, merging each job's records.
+     *
+     * @param trace the trace file
+     * @return the jobs, in submission order
+     * @throws IOException If the trace could not be read
+     */
+    static List<Job> load(final Path trace) throws IOException {
+        final Map<Long, Job> jobs = new LinkedHashMap<>();
+        long lastMicros = 0;
+        try (JobServerTrace.Reader reader = new JobServerTrace.Reader(trace)) {
+            JobServerTrace.Reader.Record record;
+            while ((record = reader.next()) != null) {
+                lastMicros = Math.max(lastMicros, record.micros);
+                if (record.type == JobServerTrace.RECORD_SUBMITTED) {
+                    jobs.put(record.jobId, new Job(record.jobId, record.micros, record.payload));
+                } else {
+                    final Job job = jobs.get(record.jobId);
+                    if (job != null) {
+                        job.completedMicros = record.micros;
+                        job.outcome = record.outcome;
+                        job.bytesSent = record.bytesSent;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            LOG.warn("Trace {} is truncated, replaying what was recorded", trace); // e.g. the server was killed
+        }
+
+        // Anything still running when the recording stopped is hung up on at the end
+        for (Job job : jobs.values()) {
+            if (job.completedMicros < 0) {
+                job.completedMicros = lastMicros;
+            }
+        }
+        return new ArrayList<>(jobs.values());
+    }
+
+    private static void arrive(final Path file) {
+        try {
+            Files.createFile(file);
+        } catch (IOException e) {
+            LOG.warn("Could not create {}", file, e);
+        }
+    }
+
+    private static long scaledMillis(final long micros) {
+        return (long) (micros / SPEED / 1000);
+    }
+
+    // Hand rolled JSON, in the same shape as JobServerLoadGenerator
+    private static void writeResults(final Path output, final long elapsedNanos, final List<Job> jobs,
+                                     final long[] latencies, final int mismatched) throws IOException {
+        final long[] replayed = latencies.clone();
+        Arrays.sort(replayed);
+        final long[] recorded = jobs.stream().mapToLong(job -> (job.completedMicros - job.submittedMicros) * 1000).sorted().toArray();
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf("  \"label\": %s,%n", JobServerLoadGenerator.jsonString(LABEL));
+            out.printf(Locale.ROOT, "  \"config\": {\"trace\": %s, \"speed\": %.2f, \"jobs\": %d, \"arrivalLeadMillis\": %d},%n",
+                    JobServerLoadGenerator.jsonString(TRACE), SPEED, jobs.size(), ARRIVAL_LEAD_MILLIS);
+            out.printf("  \"summary\": {\"elapsedMillis\": %d, \"mismatched\": %d, \"recordedBytesSent\": %d},%n",
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos), mismatched, jobs.stream().mapToLong(job -> job.bytesSent).sum());
+            out.printf("  \"recordedLatencyMillis\": %s,%n", percentiles(recorded));
+            out.printf("  \"latencyMillis\": %s%n", percentiles(replayed));
+            out.println("}");
+        }
+    }
+
+    private static String percentiles(final long[] sorted) {
+        return String.format("{\"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                TimeUnit.NANOSECONDS.toMillis(JobServerLoadGenerator.percentile(sorted, 50)),
+                TimeUnit.NANOSECONDS.toMillis(JobServerLoadGenerator.percentile(sorted, 90)),
+                TimeUnit.NANOSECONDS.toMillis(JobServerLoadGenerator.percentile(sorted, 99)),
+                TimeUnit.NANOSECONDS.toMillis(JobServerLoadGenerator.percentile(sorted, 99.9)),
+                TimeUnit.NANOSECONDS.toMillis(JobServerLoadGenerator.percentile(sorted, 100)));
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import net.jcip.annotations.Immutable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A decoded client request. The request protocol mirrors the reply one, and is simply
+ * <pre>
+ * [<RS>C<option>!<value><\n>]... [<RS>C<command>!]<body>
+ * </pre>
+ * i.e. any number of option lines (e.g. "_CID!nightly-batch\n" where _ is ascii 30), followed by either a control
+ * command (e.g. "_CSTATS!") or, as before, a plain job payload. So the original bare "/tmp/foo" request is still valid.
+ */
+@Immutable
+final class JobServerRequest {
+
+    private final Map<String, String> options;
+    private final String command;
+    private final String body;
+
+    private JobServerRequest(final Map<String, String> options, final String command, final String body) {
+        this.options = Collections.unmodifiableMap(options);
+        this.command = command;
+        this.body = Objects.requireNonNull(body);
+    }
+
+    /**
+     * Decodes the raw request.
+     *
+     * @param payload what the client sent
+     * @return the request
+     */
+    static JobServerRequest parse(final String payload) {
+        final Map<String, String> options = new LinkedHashMap<>();
+        int pos = 0;
+        while (payload.startsWith(Protocol.PROTO_CTRL, pos)) {
+            final int start = pos + Protocol.PROTO_CTRL.length();
+            final int bang = payload.indexOf('!', start);
+            if (bang < 0) {
+                break; // Not a control line after all, treat it as a body
+            }
+
+            final String name = payload.substring(start, bang + 1);
+            if (!isOption(name)) {
+                // A command owns the rest of the payload, e.g. a list of targets
+                return new JobServerRequest(options, name, stripLineEnding(payload.substring(bang + 1)));
+            }
+
+            final int eol = payload.indexOf(Protocol.LINE_ENDING, bang);
+            options.put(name, payload.substring(bang + 1, eol < 0 ? payload.length() : eol));
+            pos = eol < 0 ? payload.length() : eol + 1;
+        }
+        return new JobServerRequest(options, null, payload.substring(pos));
+    }
+
+    private static boolean isOption(final String name) {
+        return Protocol.OPTION_ID.equals(name) || Protocol.OPTION_HEARTBEAT.equals(name)
+                || Protocol.OPTION_COMPRESS.equals(name) || Protocol.OPTION_LOG.equals(name);
+    }
+
+    private static String stripLineEnding(final String s) {
+        return s.isEmpty() || s.charAt(s.length() - 1) != Protocol.LINE_ENDING ? s : s.substring(0, s.length() - 1);
+    }
+
+    /**
+     * @param name the option, e.g. Protocol.OPTION_ID
+     * @return the option's value, or null if not sent
+     */
+    String getOption(final String name) {
+        return options.get(name);
+    }
+
+    /**
+     * @return every option sent, in the order sent
+     */
+    Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the control command, e.g. Protocol.REQUEST_STATS, or null for a plain job payload
+     */
+    String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the job payload, or the command's argument(s)
+     */
+    String getBody() {
+        return body;
+    }
+}
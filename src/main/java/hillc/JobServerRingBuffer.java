@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free, single producer single consumer queue, i.e. one thread may offer() while another polls().
+ * <p>
+ * The producer publishes each slot with an ordered store to the tail, and the consumer frees it with one to the head, so
+ * neither side ever takes a lock or spins on the other.
+ *
+ * @param <E> the element type
+ */
+@ThreadSafe // For exactly one producer and one consumer thread at a time
+final class JobServerRingBuffer<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next slot to poll, only advanced by the consumer
+    private final AtomicLong tail = new AtomicLong(); // Next slot to offer, only advanced by the producer
+
+    /**
+     * Constructor
+     *
+     * @param capacity the minimum capacity, rounded up to a power of two
+     */
+    JobServerRingBuffer(final int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new Object[size];
+        this.mask = buffer.length - 1;
+    }
+
+    /**
+     * Producer only.
+     *
+     * @param e the element to add
+     * @return false, and does nothing, if full
+     */
+    boolean offer(final E e) {
+        final long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1); // Publishes the element
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the oldest element, or null if empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        final long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        final int index = (int) h & mask;
+        final E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1); // Frees the slot
+        return e;
+    }
+
+    /**
+     * @return if there is nothing to poll (a snapshot, from either thread)
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return the actual capacity
+     */
+    int capacity() {
+        return buffer.length;
+    }
+}
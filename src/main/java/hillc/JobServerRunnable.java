@@ -8,6 +8,7 @@ package hillc;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.OutputStreamAppender;
 import hillc.JobServerClientOutput.Protocol;
 import net.jcip.annotations.ThreadSafe;
@@ -52,7 +53,7 @@ class JobServerRunnable implements Runnable {
     //
     private static final ThreadLocal<ch.qos.logback.classic.Logger> CLIENT_LOGGER = ThreadLocal.withInitial(() -> {
         // Create the appender
-        final OutputStreamAppender<ILoggingEvent> clientAppender = new OutputStreamAppender<>();
+        final ClientAppender clientAppender = new ClientAppender();
         clientAppender.setName(localName()); // Name it, so we can recall in run()
         clientAppender.setEncoder(ENCODER);
         clientAppender.setOutputStream(new OutputStream() {
@@ -73,7 +74,9 @@ class JobServerRunnable implements Runnable {
     private final ScheduledExecutorService scheduledThreadPoolExecutor;
     private final JobServerClientOutput jobServerClientOutput;
     private final JobServerWorker jobServerWorker;
-    private ScheduledFuture scheduledFuture = null;
+    private final JobServerLogRepeats logRepeats;
+    private volatile ScheduledFuture scheduledFuture = null;
+    private volatile boolean cancelled = false;
 
     /**
      * Constructor
@@ -85,9 +88,25 @@ class JobServerRunnable implements Runnable {
     JobServerRunnable(final ScheduledExecutorService scheduledThreadPoolExecutor,
                       final JobServerClientOutput jobServerClientOutput,
                       final JobServerWorker jobServerWorker) {
+        this(scheduledThreadPoolExecutor, jobServerClientOutput, jobServerWorker, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param scheduledThreadPoolExecutor The thread pool scheduler
+     * @param jobServerClientOutput       The client output processor
+     * @param jobServerWorker             the provided worker logic
+     * @param logRepeats                  holds back repeated client log lines, or null to send them all
+     */
+    JobServerRunnable(final ScheduledExecutorService scheduledThreadPoolExecutor,
+                      final JobServerClientOutput jobServerClientOutput,
+                      final JobServerWorker jobServerWorker,
+                      final JobServerLogRepeats logRepeats) {
         this.scheduledThreadPoolExecutor = Objects.requireNonNull(scheduledThreadPoolExecutor);
         this.jobServerClientOutput = Objects.requireNonNull(jobServerClientOutput);
         this.jobServerWorker = Objects.requireNonNull(jobServerWorker);
+        this.logRepeats = logRepeats;
     }
 
     // Helper to return thread local name, used when getting logger components by name
@@ -98,7 +117,7 @@ class JobServerRunnable implements Runnable {
     @Override
     public void run() {
         // First do a sanity check if the client is still there
-        if (!jobServerClientOutput.isClientConnected()) {
+        if (cancelled || !jobServerClientOutput.isClientConnected()) {
             LOG.info("Client gone, abandoning work for: {}", jobServerWorker.getName());
             return;
         }
@@ -106,25 +125,87 @@ class JobServerRunnable implements Runnable {
         // (Re)attach this thread's special Logger+Appender to our instance's OutputStream
         // N.B. No need to buffer this as OutputStreamAppender flushes whole lines at once
         final ch.qos.logback.classic.Logger clientLog = CLIENT_LOGGER.get();
-        ((OutputStreamAppender<?>) clientLog.getAppender(localName())).setOutputStream(jobServerClientOutput.getOs());
+        final ClientAppender clientAppender = (ClientAppender) clientLog.getAppender(localName());
+        clientAppender.setOutputStream(jobServerClientOutput.getOs());
+        clientAppender.logRepeats = logRepeats;
 
         // Now do the worker logic
         try {
             if (jobServerWorker.doWork(clientLog)) {
                 // All done! Notify the client and close the socket
+                clientAppender.summarise();
                 jobServerClientOutput.sendDone(jobServerWorker.getReturnCode());
             } else {
                 // Reschedule ourselves again in future, ensure this is the last thing we do else we need Worker thread safety
                 scheduledFuture = scheduledThreadPoolExecutor.schedule(this, jobServerWorker.getRescheduleInterval(), TimeUnit.SECONDS);
+                if (cancelled) {
+                    scheduledFuture.cancel(false); // Lost a race with cancel(), so undo
+                }
             }
         } catch (Exception e) {
             LOG.error("Problem with processing, failing for: {}", jobServerWorker.getName(), e);
 
             // Notify the client, and close the socket
+            clientAppender.summarise();
             jobServerClientOutput.sendFail(jobServerWorker.getReturnCode());
         }
     }
 
+    /**
+     * The client appender, which holds back repeated lines if the job asked for that, see JobServerLogRepeats
+     */
+    private static final class ClientAppender extends OutputStreamAppender<ILoggingEvent> {
+        private JobServerLogRepeats logRepeats = null; // The current job's, if any, only touched by this (one) thread
+
+        @Override
+        protected void append(final ILoggingEvent event) {
+            if (logRepeats == null) {
+                super.append(event);
+                return;
+            }
+            switch (logRepeats.offer(event)) {
+                case SEND:
+                    super.append(event);
+                    break;
+                case SUMMARISE_THEN_SEND:
+                    super.append(summaryOf(logRepeats.getRepeated(), logRepeats.takeRepeats()));
+                    super.append(event);
+                    break;
+                case SUMMARISE:
+                    super.append(summaryOf(logRepeats.getRepeated(), logRepeats.takeRepeats()));
+                    break;
+                case HOLD:
+                    break;
+            }
+        }
+
+        // Sends the summary of any repeats still held back, e.g. as the job is done
+        private void summarise() {
+            final ILoggingEvent repeated = logRepeats == null ? null : logRepeats.getRepeated();
+            if (repeated != null) {
+                super.append(summaryOf(repeated, logRepeats.takeRepeats()));
+            }
+        }
+
+        // The summary of a repeated message, as from the same logger, at the same level
+        private static ILoggingEvent summaryOf(final ILoggingEvent repeated, final int repeats) {
+            return new LoggingEvent(JobServerRunnable.class.getName(), LOGGER_CONTEXT.getLogger(repeated.getLoggerName()),
+                    repeated.getLevel(), JobServerLogRepeats.SUMMARY_MESSAGE, null, new Object[]{repeats});
+        }
+    }
+
+    /**
+     * Abandons the work, e.g. as the client has gone, removing any pending re-scheduled run from the queue.
+     */
+    void cancel() {
+        cancelled = true;
+        final ScheduledFuture future = scheduledFuture;
+        if (future != null) {
+            future.cancel(false);
+        }
+        jobServerWorker.cancel(); // e.g. stop any subtasks of a run in progress
+    }
+
     /**
      * @return If we have been scheduled, the Future associated with it, else null
      */
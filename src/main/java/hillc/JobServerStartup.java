@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The parts of JobServer startup that can run side by side before we accept any connections, i.e. warming up the hot
+ * classes a first request would otherwise pay for (class loading, static initialisers such as JobServerRunnable's
+ * Logback encoder, each worker thread's client logger, and some JIT), and the readiness signal once we are done.
+ */
+final class JobServerStartup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobServerStartup.class);
+
+    private JobServerStartup() {
+    }
+
+    /**
+     * Runs a (real, file checking) job on every core thread of the pool, in both wire protocols, so each thread has
+     * built its client logger, and the worker, runnable and output classes are loaded.
+     * <p>
+     * The files the jobs check for go in a temporary directory of our own, so other instances on the host (or real
+     * clients' targets) can't be confused with them, which is removed again afterwards.
+     *
+     * @param pool    the worker pool, its core threads already started
+     * @param threads the number of core threads
+     * @throws InterruptedException If interrupted while waiting for the pool
+     */
+    static void warmUpPool(final ExecutorService pool, final int threads) throws InterruptedException {
+        final Path dir;
+        try {
+            dir = Files.createTempDirectory("jobserver-warmup");
+        } catch (IOException e) {
+            LOG.warn("Could not warm up worker threads", e);
+            return;
+        }
+        final CountDownLatch allBusy = new CountDownLatch(threads); // Hold each thread until all have one, so none get two
+        final CountDownLatch done = new CountDownLatch(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                final Path file = dir.resolve("warmup-" + i);
+                pool.execute(() -> {
+                    try {
+                        for (boolean binary : new boolean[]{false, true}) {
+                            Files.write(file, new byte[0]);
+                            final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+                            final JobServerClientOutput output = binary
+                                    ? new JobServerClientOutput.Binary(channel.pipeline().firstContext())
+                                    : new JobServerClientOutput(channel.pipeline().firstContext());
+                            new JobServerRunnable(channel.eventLoop(), output, new JobServerWorkerMyBizLogic(1, file.toString())).run();
+                            channel.finishAndReleaseAll();
+                        }
+                        allBusy.countDown();
+                        allBusy.await(1, TimeUnit.MINUTES);
+                    } catch (IOException e) {
+                        LOG.warn("Could not warm up worker thread", e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            removeAll(dir);
+        }
+    }
+
+    // Removes a directory of files, e.g. any the warm up jobs didn't consume
+    private static void removeAll(final Path dir) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            LOG.warn("Could not remove warm up directory {}", dir, e);
+        }
+    }
+
+    /**
+     * Feeds control requests (which have no side effects) through a real server pipeline, in both wire protocols, so
+     * the codecs, request parsing and dispatch are loaded, and have had some JIT.
+     *
+     * @param iterations how many of each request
+     * @param handler    makes the server's request handler
+     */
+    static void warmUpPipeline(final int iterations, final Supplier<ChannelHandler> handler) {
+        for (int i = 0; i < iterations; i++) {
+            for (String request : new String[]{Protocol.REQUEST_STATS, Protocol.REQUEST_JOBS}) {
+                final String raw = Protocol.PROTO_CTRL + request;
+                warmUpRequest(handler, Unpooled.copiedBuffer(raw, CharsetUtil.UTF_8));
+
+                final JobServerFrame frame = JobServerFrame.ofString(ByteBufAllocator.DEFAULT, JobServerFrame.REQUEST, raw);
+                try {
+                    warmUpRequest(handler, Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(new byte[]{JobServerFrame.HANDSHAKE}),
+                            JobServerFrameCodec.toWire(ByteBufAllocator.DEFAULT, frame)));
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    private static void warmUpRequest(final Supplier<ChannelHandler> handler, final ByteBuf request) {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("negotiator", new JobServerFrameCodec.Negotiator()).addLast("handler", handler.get());
+        channel.writeInbound(request);
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Tells whoever is watching (e.g. a restart script) that we are taking work, by (atomically) writing a file of
+     * "key=value" lines, which is removed again when the JVM exits.
+     *
+     * @param file   the ready file
+     * @param values what to put in it, e.g. the port
+     */
+    static void writeReadyFile(final Path file, final Map<String, ?> values) {
+        final StringBuilder content = new StringBuilder();
+        values.forEach((key, value) -> content.append(key).append('=').append(value).append(Protocol.LINE_ENDING));
+        try {
+            final Path parent = file.toAbsolutePath().getParent();
+            final Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.write(temp, content.toString().getBytes(CharsetUtil.UTF_8));
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write ready file " + file, e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Could not remove ready file {}", file, e);
+            }
+        }, "Ready File Shutdown"));
+    }
+}
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional workload recorder, capturing just enough about each job to replay it later (see JobServerReplay).
+ * <p>
+ * The trace is a compact binary file, a header followed by one record per submission and one per completion:
+ * <pre>
+ * header:     "JSTR" version:byte startEpochMillis:long
+ * submission: 'S' jobId:varlong micros:varlong payloadLength:varlong payload:utf8
+ * completion: 'E' jobId:varlong micros:varlong outcome:byte returnCode:varlong bytesSent:varlong
+ * </pre>
+ * where micros are relative to the header's start time. Records are appended from the (multiple) event loop threads,
+ * so writes are serialized, but only ever to an in memory buffer, flush() pushes them to disk.
+ */
+@ThreadSafe
+class JobServerTrace implements Closeable {
+
+    static final byte[] MAGIC = {'J', 'S', 'T', 'R'};
+    static final byte VERSION = 1;
+    static final byte RECORD_SUBMITTED = 'S';
+    static final byte RECORD_COMPLETED = 'E';
+
+    /**
+     * How a job ended, from the client's point of view
+     */
+    enum Outcome {
+        DONE, FAIL, CLOSED // Closed means the client went away before a terminal reply
+    }
+
+    /**
+     * A trace that records nothing, for when tracing is not enabled
+     */
+    static final JobServerTrace DISABLED = new JobServerTrace(null, 0) {
+        @Override
+        void submitted(final long jobId, final String payload) {
+        }
+
+        @Override
+        void completed(final long jobId, final Outcome outcome, final int returnCode, final long bytesSent) {
+        }
+
+        @Override
+        void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobServerTrace.class);
+    private static final AtomicLong JOB_IDS = new AtomicLong();
+
+    @GuardedBy("this")
+    private final DataOutputStream out;
+    private final long startNanos;
+
+    private JobServerTrace(final DataOutputStream out, final long startNanos) {
+        this.out = out;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Opens a new trace, overwriting any existing file.
+     *
+     * @param path where to write the trace, or null to disable tracing
+     * @return the trace
+     * @throws IOException If the trace file could not be created
+     */
+    static JobServerTrace open(final Path path) throws IOException {
+        if (path == null) {
+            return DISABLED;
+        }
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        LOG.info("Recording workload trace to {}", path);
+        return new JobServerTrace(out, System.nanoTime());
+    }
+
+    /**
+     * @return a new, process unique, job id
+     */
+    static long nextJobId() {
+        return JOB_IDS.incrementAndGet();
+    }
+
+    /**
+     * Records a job submission.
+     *
+     * @param jobId   the job's id
+     * @param payload the job's payload, as sent by the client
+     */
+    void submitted(final long jobId, final String payload) {
+        final byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        final long micros = micros();
+        synchronized (this) {
+            try {
+                out.writeByte(RECORD_SUBMITTED);
+                writeVarLong(out, jobId);
+                writeVarLong(out, micros);
+                writeVarLong(out, bytes.length);
+                out.write(bytes);
+            } catch (IOException e) {
+                LOG.warn("Could not record submission of job {}", jobId, e);
+            }
+        }
+    }
+
+    /**
+     * Records a job completion.
+     *
+     * @param jobId      the job's id
+     * @param outcome    how the job ended
+     * @param returnCode the return code sent to the client (if any)
+     * @param bytesSent  the total bytes sent to the client
+     */
+    void completed(final long jobId, final Outcome outcome, final int returnCode, final long bytesSent) {
+        final long micros = micros();
+        synchronized (this) {
+            try {
+                out.writeByte(RECORD_COMPLETED);
+                writeVarLong(out, jobId);
+                writeVarLong(out, micros);
+                out.writeByte(outcome.ordinal());
+                writeVarLong(out, returnCode & 0xFFFFFFFFL);
+                writeVarLong(out, bytesSent);
+            } catch (IOException e) {
+                LOG.warn("Could not record completion of job {}", jobId, e);
+            }
+        }
+    }
+
+    /**
+     * Pushes buffered records to disk, called periodically so a crash loses little.
+     */
+    synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            LOG.warn("Could not flush workload trace", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private long micros() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    // LEB128 style, 7 bits at a time, so small ids/lengths take a byte or two
+    static void writeVarLong(final DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(final DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    /**
+     * Reads a trace back, one record at a time.
+     */
+    @NotThreadSafe
+    static class Reader implements Closeable {
+
+        /**
+         * A single trace record, completion only fields are unset for submissions
+         */
+        static final class Record {
+            byte type;
+            long jobId;
+            long micros;
+            String payload;
+            Outcome outcome;
+            int returnCode;
+            long bytesSent;
+        }
+
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+        private final long size; // Of the file, when opened
+        private final long startEpochMillis;
+
+        /**
+         * Constructor
+         *
+         * @param path the trace to read
+         * @throws IOException If the file is not a readable trace
+         */
+        Reader(final Path path) throws IOException {
+            this.size = Files.size(path);
+            this.counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+            this.in = new DataInputStream(counter);
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            final byte version = in.readByte();
+            if (!Arrays.equals(MAGIC, magic) || version != VERSION) {
+                in.close();
+                throw new IOException("Not a version " + VERSION + " workload trace: " + path);
+            }
+            this.startEpochMillis = in.readLong();
+        }
+
+        /**
+         * @return the wall clock time the recording started
+         */
+        long getStartEpochMillis() {
+            return startEpochMillis;
+        }
+
+        /**
+         * @return the next record, or null at the end of the trace
+         * @throws IOException If the trace is corrupt
+         */
+        Record next() throws IOException {
+            final long start = counter.getCount();
+            final int type = in.read();
+            if (type < 0) {
+                return null;
+            }
+
+            final Record record = new Record();
+            record.type = (byte) type;
+            record.jobId = readVarLong(in);
+            record.micros = readVarLong(in);
+            final long offset = counter.getCount(); // i.e. of the record type's own fields
+            switch (record.type) {
+                case RECORD_SUBMITTED:
+                    // Don't trust a length from the file to size an array, it is only as good as the file
+                    final long length = readVarLong(in);
+                    if (length < 0 || length > Integer.MAX_VALUE) {
+                        throw new IOException("Bad payload length " + length + " at offset " + offset);
+                    }
+                    if (length > size - counter.getCount()) {
+                        throw new EOFException("Bad payload length " + length + " at offset " + offset + ", past the end of the trace");
+                    }
+                    final byte[] payload = new byte[(int) length];
+                    in.readFully(payload);
+                    record.payload = new String(payload, StandardCharsets.UTF_8);
+                    break;
+                case RECORD_COMPLETED:
+                    final int outcome = in.readByte();
+                    if (outcome < 0 || outcome >= Outcome.values().length) {
+                        // e.g. a corrupt file, or one from a newer version with more outcomes
+                        throw new IOException("Unknown outcome " + outcome + " at offset " + offset);
+                    }
+                    record.outcome = Outcome.values()[outcome];
+                    record.returnCode = (int) readVarLong(in);
+                    record.bytesSent = readVarLong(in);
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " at offset " + start);
+            }
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * Keeps count of the bytes read, so problems can be reported by their offset in the file.
+         */
+        private static final class CountingInputStream extends FilterInputStream {
+            private long count = 0;
+
+            private CountingInputStream(final InputStream in) {
+                super(in);
+            }
+
+            long getCount() {
+                return count;
+            }
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    count++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    count += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                final long skipped = super.skip(n);
+                count += skipped;
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false; // A reset would throw the count off
+            }
+        }
+    }
+}
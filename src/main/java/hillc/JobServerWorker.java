@@ -35,5 +35,20 @@ interface JobServerWorker {
      */
     int getRescheduleInterval();
 
+    /**
+     * @return true if doWork() never blocks (e.g. on slow I/O), so it may be run on the client's own event loop, see
+     * jobserver.eventLoopJobs
+     */
+    default boolean isNonBlocking() {
+        return false;
+    }
+
+    /**
+     * Abandons any work in progress, e.g. subtasks still running elsewhere as the client has gone. Called from any
+     * thread, at most once.
+     */
+    default void cancel() {
+    }
+
 }
 
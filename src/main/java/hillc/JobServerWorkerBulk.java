@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.NotThreadSafe;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Demo business logic, in bulk. Watches for a whole batch of files (given directly, or listed in a manifest file) as a
+ * single job, so a pipeline waiting on hundreds of files needs one connection and gets one DONE. Progress is tracked
+ * in a BitSet, and reported to the client as one aggregated line per run.
+ */
+@NotThreadSafe
+class JobServerWorkerBulk implements JobServerWorker {
+
+    private static final int FAILED_RETURN_CODE = 1; // Return code for a target we had problems with
+
+    private final int interval;
+    private final String name;
+    private final String manifest; // If given, where to load the targets from
+    private String[] targets; // Loaded lazily from the manifest, so not on the event loop
+    private BitSet completed;
+    private int returnCode = 0; // The worst of all the targets
+
+    private JobServerWorkerBulk(final int interval, final String name, final String manifest, final String[] targets) {
+        this.interval = interval;
+        this.name = Objects.requireNonNull(name);
+        this.manifest = manifest;
+        this.targets = targets;
+        this.completed = targets == null ? null : new BitSet(targets.length);
+    }
+
+    /**
+     * @param interval The interval, in seconds, between each re-scheduled run
+     * @param targets  The filenames provided by the client
+     * @return a worker for the given targets
+     */
+    static JobServerWorkerBulk ofTargets(final int interval, final List<String> targets) {
+        final String[] unique = uniqueTargets(targets);
+        return new JobServerWorkerBulk(interval, "bulk of " + unique.length + " targets", null, unique);
+    }
+
+    /**
+     * @param interval The interval, in seconds, between each re-scheduled run
+     * @param manifest The manifest filename provided by the client, listing one target per line
+     * @return a worker for the targets in the manifest
+     */
+    static JobServerWorkerBulk ofManifest(final int interval, final String manifest) {
+        return new JobServerWorkerBulk(interval, manifest, manifest, null);
+    }
+
+    // The targets, trimmed, without blanks, and each only once (in order), as the first to find a file consumes it, so
+    // a second copy would wait for it forever
+    private static String[] uniqueTargets(final List<String> targets) {
+        return targets.stream().map(String::trim).filter(s -> !s.isEmpty())
+                .collect(Collectors.toCollection(LinkedHashSet::new)).toArray(new String[0]);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean doWork(final Logger clientLog) throws Exception {
+        if (targets == null) {
+            try {
+                targets = uniqueTargets(Files.readAllLines(Paths.get(manifest), StandardCharsets.UTF_8));
+                completed = new BitSet(targets.length);
+                clientLog.info("Loaded {} targets from manifest '{}'", targets.length, manifest);
+            } catch (IOException | InvalidPathException e) {
+                clientLog.error("Problem reading manifest!", e);
+                throw e;
+            }
+        }
+        if (targets.length == 0) {
+            // Nothing to wait for is a mistake, not an instant success
+            clientLog.error("No targets given!");
+            returnCode = JobServer.BAD_REQUEST_RETURN_CODE;
+            throw new IllegalArgumentException("No targets for " + name);
+        }
+
+        //
+        // The business logic, e.g. checking files... but for every outstanding target
+        //
+        final int outstanding = targets.length - completed.cardinality();
+        int found = 0;
+        for (int i = completed.nextClearBit(0); i < targets.length; i = completed.nextClearBit(i + 1)) {
+            try {
+                if (JobServerWorkerMyBizLogic.consume(Paths.get(targets[i]))) {
+                    completed.set(i);
+                    found++;
+                }
+            } catch (IOException | InvalidPathException e) {
+                // One bad target shouldn't stop the others, so note it and move on
+                clientLog.error("Problem with file processing for '{}'!", targets[i], e);
+                completed.set(i);
+                returnCode = Math.max(returnCode, FAILED_RETURN_CODE);
+            }
+        }
+
+        final int done = completed.cardinality();
+        clientLog.info("Checked {} targets, found {} new, {} of {} complete", outstanding, found, done, targets.length);
+        return done == targets.length;
+    }
+
+    @Override
+    public int getReturnCode() {
+        return returnCode;
+    }
+
+    @Override
+    public int getRescheduleInterval() {
+        return interval;
+    }
+}
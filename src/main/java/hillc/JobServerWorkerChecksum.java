@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32C;
+
+/**
+ * Demo business logic, split across cores. Waits for a file to arrive, then checksums it, i.e. a CRC32C of each
+ * (memory mapped) block, computed in parallel, then a CRC32C of those, so the result doesn't depend on the split.
+ */
+@ThreadSafe // See JobServerWorkerSplittable
+class JobServerWorkerChecksum extends JobServerWorkerSplittable<Long> {
+
+    static final int BLOCK_SIZE = 1 << 20; // Bytes per block checksum
+    private static final int LEAF_BLOCKS = 8; // Blocks a subtask maps and checksums itself, rather than splitting further
+
+    private final int interval;
+    private final String filename;
+    private volatile long size = 0;
+
+    /**
+     * Constructor
+     *
+     * @param interval        The interval, in seconds, between each re-scheduled run until the file arrives
+     * @param filename        The filename provided by the client
+     * @param pool            the shared pool to checksum on
+     * @param progressSeconds the interval, in seconds, between progress lines to the client
+     */
+    JobServerWorkerChecksum(final int interval, final String filename, final ForkJoinPool pool, final int progressSeconds) {
+        super(pool, progressSeconds);
+        this.interval = interval;
+        this.filename = Objects.requireNonNull(filename);
+    }
+
+    @Override
+    public String getName() {
+        return filename;
+    }
+
+    @Override
+    protected ForkJoinTask<Long> split(final Logger clientLog) throws Exception {
+        try {
+            clientLog.info("Checking for {}", filename);
+            final Path path = Paths.get(filename);
+            if (!Files.isRegularFile(path)) {
+                return null;
+            }
+            size = Files.size(path);
+            clientLog.info("Found file '{}', checksumming {} bytes", filename, size);
+            return new Checksum(path, size);
+        } catch (IOException | InvalidPathException e) {
+            clientLog.error("Problem with file processing!", e);
+            throw e;
+        }
+    }
+
+    @Override
+    protected long getTotalWork() {
+        return size;
+    }
+
+    @Override
+    protected boolean complete(final Logger clientLog, final Long checksum) {
+        clientLog.info("Checksum of '{}' is {}", filename, String.format("%08x", checksum));
+        return true;
+    }
+
+    @Override
+    public int getReturnCode() {
+        return 0; // Any problem is a FAIL
+    }
+
+    @Override
+    protected int getReadyInterval() {
+        return interval;
+    }
+
+    /**
+     * The checksum of a file, i.e. of its block checksums, see Blocks
+     */
+    private final class Checksum extends RecursiveTask<Long> {
+        private final Path path;
+        private final long size;
+
+        private Checksum(final Path path, final long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        @Override
+        protected Long compute() {
+            final int blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            final int[] checksums = new int[blocks];
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                new Blocks(channel, size, checksums, 0, blocks).invoke();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            final ByteBuffer all = ByteBuffer.allocate(blocks * Integer.BYTES);
+            all.asIntBuffer().put(checksums);
+            final CRC32C crc = new CRC32C();
+            crc.update(all);
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * The checksums of a range of blocks, split in half until small enough to map and do
+     */
+    private final class Blocks extends RecursiveAction {
+        private final FileChannel channel;
+        private final long size;
+        private final int[] checksums;
+        private final int from;
+        private final int to;
+
+        private Blocks(final FileChannel channel, final long size, final int[] checksums, final int from, final int to) {
+            this.channel = channel;
+            this.size = size;
+            this.checksums = checksums;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (isAbandoned()) {
+                throw new CancellationException();
+            }
+            if (to - from > LEAF_BLOCKS) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new Blocks(channel, size, checksums, from, mid), new Blocks(channel, size, checksums, mid, to));
+                return;
+            }
+
+            final long start = (long) from * BLOCK_SIZE;
+            final MappedByteBuffer mapped;
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min((long) to * BLOCK_SIZE, size) - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            final CRC32C crc = new CRC32C();
+            for (int block = from; block < to; block++) {
+                final int offset = (block - from) * BLOCK_SIZE;
+                mapped.limit(Math.min(offset + BLOCK_SIZE, mapped.capacity())).position(offset);
+                crc.reset();
+                crc.update(mapped);
+                checksums[block] = (int) crc.getValue();
+                worked(mapped.limit() - offset);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.NotThreadSafe;
+import org.slf4j.Logger;
+
+import java.util.Objects;
+
+/**
+ * Decorates another worker, charging the time it spends to its owning client, and stepping aside (rescheduling itself
+ * shortly, without doing any work) while that client has had more than its fair share of a contended worker pool.
+ */
+@NotThreadSafe
+class JobServerWorkerFairShare implements JobServerWorker {
+
+    private static final int YIELD_INTERVAL_SECONDS = 1; // How long to step aside for
+
+    private final JobServerWorker delegate;
+    private final JobServerRateLimiter rateLimiter;
+    private final JobServerRateLimiter.Client client;
+    private boolean yielded = false;
+
+    /**
+     * Constructor
+     *
+     * @param delegate    the real worker logic
+     * @param rateLimiter the rate limiter tracking everyone's worker time
+     * @param client      the client that owns this job
+     */
+    JobServerWorkerFairShare(final JobServerWorker delegate,
+                             final JobServerRateLimiter rateLimiter,
+                             final JobServerRateLimiter.Client client) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.rateLimiter = Objects.requireNonNull(rateLimiter);
+        this.client = Objects.requireNonNull(client);
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public boolean doWork(final Logger clientLog) throws Exception {
+        yielded = rateLimiter.overShare(client);
+        if (yielded) {
+            return false;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            return delegate.doWork(clientLog);
+        } finally {
+            rateLimiter.worked(client, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public int getReturnCode() {
+        return delegate.getReturnCode();
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return delegate.isNonBlocking();
+    }
+
+    @Override
+    public void cancel() {
+        delegate.cancel();
+    }
+
+    @Override
+    public int getRescheduleInterval() {
+        return yielded ? Math.min(YIELD_INTERVAL_SECONDS, delegate.getRescheduleInterval()) : delegate.getRescheduleInterval();
+    }
+}
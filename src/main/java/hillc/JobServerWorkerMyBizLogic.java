@@ -50,11 +50,8 @@ class JobServerWorkerMyBizLogic implements JobServerWorker {
 
             // Check if the file exists
             clientLog.info("Checking for {}", filename);
-            Path path = Paths.get(filename);
-            if (Files.exists(path) && Files.isRegularFile(path)) {
-                // Delete it - this is our "work" we have been waiting to do
+            if (consume(Paths.get(filename))) {
                 clientLog.info("Found file '{}', deleting it and sending reply to calling client", filename);
-                Files.delete(path);
 
                 returnCode = 0;
                 return true;
@@ -67,6 +64,26 @@ class JobServerWorkerMyBizLogic implements JobServerWorker {
         return false; // By default, we re-schedule ourselves
     }
 
+    @Override
+    public boolean isNonBlocking() {
+        return true; // Just a local stat (and delete) each run
+    }
+
+    /**
+     * The "work" we have been waiting to do, i.e. if the file has arrived then delete it.
+     *
+     * @param path the file to check for
+     * @return true if the file was found (and so deleted), else false
+     * @throws IOException If the file could not be deleted
+     */
+    static boolean consume(final Path path) throws IOException {
+        if (Files.exists(path) && Files.isRegularFile(path)) {
+            Files.delete(path);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public int getReturnCode() {
         return returnCode;
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Worker logic with CPU heavy work to do once its target has arrived, e.g. checksumming a large file, which it splits
+ * into subtasks run on a ForkJoinPool shared by all such jobs, so one job can use every core.
+ * <p>
+ * The worker (scheduling pool) thread never waits for the subtasks, it starts them then reschedules itself every
+ * progressSeconds to log their progress to the client, as the client logger belongs to that thread, until they are
+ * done. Subtasks must not log, they report their progress with worked(), and should give up early once isAbandoned(),
+ * e.g. as the client has gone.
+ *
+ * @param <T> the result of the split work
+ */
+@ThreadSafe // The subclass' split work runs on many threads, the rest only from (the serial) doWork()
+abstract class JobServerWorkerSplittable<T> implements JobServerWorker {
+
+    private final ForkJoinPool pool;
+    private final int progressSeconds;
+    private final LongAdder worked = new LongAdder();
+    private volatile ForkJoinTask<T> task = null; // The split work in progress, if any
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor
+     *
+     * @param pool            the shared pool to run the split work on
+     * @param progressSeconds the interval, in seconds, between progress lines to the client
+     */
+    JobServerWorkerSplittable(final ForkJoinPool pool, final int progressSeconds) {
+        this.pool = Objects.requireNonNull(pool);
+        this.progressSeconds = progressSeconds;
+    }
+
+    /**
+     * Checks if the work is ready to do, e.g. the target has arrived, and if so splits it up.
+     *
+     * @param clientLog a logger that writes back to the client that called us
+     * @return the (root) task for the work, or null if not ready yet (and we will be rescheduled again)
+     * @throws Exception to abort the client processing
+     */
+    protected abstract ForkJoinTask<T> split(Logger clientLog) throws Exception;
+
+    /**
+     * @return the total amount of work split, in the units passed to worked(), e.g. bytes
+     */
+    protected abstract long getTotalWork();
+
+    /**
+     * Deals with the result of the split work, e.g. reports it.
+     *
+     * @param clientLog a logger that writes back to the client that called us
+     * @param result    the result of the split work
+     * @return true if all work has completed, else false (and we will be rescheduled again)
+     * @throws Exception to abort the client processing
+     */
+    protected abstract boolean complete(Logger clientLog, T result) throws Exception;
+
+    /**
+     * @return The interval, in seconds, between each re-scheduled run until the work is ready to split
+     */
+    protected abstract int getReadyInterval();
+
+    /**
+     * Records progress, from any subtask.
+     *
+     * @param units the amount of work just done
+     */
+    protected final void worked(final long units) {
+        worked.add(units);
+    }
+
+    /**
+     * @return true if the subtasks should give up, e.g. as the client has gone
+     */
+    protected final boolean isAbandoned() {
+        return cancelled;
+    }
+
+    @Override
+    public final boolean doWork(final Logger clientLog) throws Exception {
+        final ForkJoinTask<T> split = task;
+        if (split == null) {
+            // Not started yet, so see if we can
+            final ForkJoinTask<T> started = split(clientLog);
+            if (started == null) {
+                return false;
+            }
+            worked.reset();
+            task = started;
+            if (!cancelled) { // Else lost a race with cancel(), so don't start
+                pool.execute(started);
+            }
+            return false; // i.e. check back shortly, rather than hold this thread while it runs
+        }
+
+        if (!split.isDone()) {
+            final long total = getTotalWork();
+            clientLog.info("{} is {}% done", getName(), total == 0 ? 100 : worked.sum() * 100 / total);
+            return false;
+        }
+
+        task = null;
+        final T result;
+        try {
+            result = split.get(); // Done, so doesn't block
+        } catch (CancellationException | ExecutionException e) {
+            if (cancelled) {
+                return false; // Abandoned, e.g. as the client has gone, so there is no one to tell
+            }
+            throw e instanceof ExecutionException && e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        return complete(clientLog, result);
+    }
+
+    @Override
+    public final int getRescheduleInterval() {
+        return task != null ? progressSeconds : getReadyInterval();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        final ForkJoinTask<T> split = task;
+        if (split != null) {
+            split.cancel(false); // Subtasks already running finish at their next isAbandoned() check
+        }
+    }
+}
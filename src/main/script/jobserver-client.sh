@@ -12,8 +12,34 @@ set -euo pipefail
 RS=$'\x1e'  # ASCII 30 "record separator" single char
 returnCode=-1
 
+request="${RS}CHEARTBEAT!"$'\n'                          # We answer heartbeats, so the server can tell we are alive
+if [[ -n "${JOBSERVER_CLIENT_ID:-}" ]]; then             # Optionally identify ourselves, for rate limiting
+    request+="${RS}CID!${JOBSERVER_CLIENT_ID}"$'\n'
+fi
+if [[ -n "${JOBSERVER_CLIENT_LOG:-}" ]]; then            # Optionally choose how much of the job's log we see
+    request+="${RS}CLOG!${JOBSERVER_CLIENT_LOG}"$'\n'   # i.e. all, summary or quiet
+fi
+case "${1:-}" in
+--bulk)                                                  # One job for all the files, one per line
+    shift
+    request+="${RS}CBULK!$(printf "%s\\n" "$@")"
+    ;;
+--manifest)                                              # One job for all the files listed in the given file
+    request+="${RS}CMANIFEST!$2"
+    ;;
+--checksum)                                              # Wait for the given file, then checksum it
+    request+="${RS}CCHECKSUM!$2"
+    ;;
+--jobs)                                                  # Not a job, a snapshot of the server's jobs, optionally how many to list
+    request+="${RS}CJOBS!${2:-}"
+    ;;
+*)
+    request+="$(printf "%s" "$@")"                       # All supplied arguments
+    ;;
+esac
+
 exec 3<> /dev/tcp/localhost/12345                        # Open the socket to the JobServer
-printf "%s" "$@" >&3                                     # Write all supplied arguments
+printf "%s" "$request" >&3                               # Write the whole request at once
 while read -r line <&3; do                               # Now read in a loop until the socket closes
     case "$line" in
     ${RS}L*)                                             # logging, so print to stdout (minus first 2 chars)
@@ -21,6 +47,9 @@ while read -r line <&3; do                               # Now read in a loop un
         ;;
     ${RS}C*)                                             # control, so examine the command
         case "${line#??}" in
+        PING!*)
+            printf "%sCPONG!\\n" "$RS" >&3              # heartbeat, so answer it
+            ;;
         DONE!*)
             returnCode="${line##*!}"                    # everything after the '!'
             ;;
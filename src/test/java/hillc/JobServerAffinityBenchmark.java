@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Compares the pooled (default) and event loop affine (-Djobserver.eventLoopJobs=true) modes, for jobs that are done on
+ * their first run, i.e. where the thread handoffs dominate. Each mode gets its own JobServer process, driven by a fixed
+ * number of concurrent clients, reporting throughput and submit to DONE latency.
+ * <p>
+ * Not a unit test, run it by hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerAffinityBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class JobServerAffinityBenchmark {
+
+    // Configuration
+    private static final int PORT = Integer.getInteger("benchmark.port", 12346); // For the JobServers we start
+    private static final int CLIENTS = Integer.getInteger("benchmark.clients", 50); // Jobs in flight at once
+    private static final int JOBS = Integer.getInteger("benchmark.jobs", 20_000); // Measured jobs, per mode
+    private static final int WARMUP_JOBS = Integer.getInteger("benchmark.warmupJobs", 10_000);
+
+    private static final Consumer<String> IGNORE_LOG = line -> {
+    };
+
+    public static void main(String[] args) throws Exception {
+        final Path dir = Files.createTempDirectory("jobserver-affinity");
+        try {
+            for (String eventLoopJobs : new String[]{"false", "true"}) {
+                final Process server = new ProcessBuilder(Arrays.asList(
+                        System.getProperty("java.home") + "/bin/java",
+                        "-Djobserver.port=" + PORT,
+                        "-Djobserver.eventLoopJobs=" + eventLoopJobs,
+                        "-cp", System.getProperty("java.class.path"),
+                        JobServer.class.getName()))
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                try (JobServerClient client = new JobServerClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT))) {
+                    awaitServer(client);
+                    run(client, dir, WARMUP_JOBS);
+                    final long[] latencies = run(client, dir, JOBS);
+                    final long elapsed = latencies[latencies.length - 1];
+                    Arrays.sort(latencies, 0, JOBS);
+                    final long[] sorted = Arrays.copyOf(latencies, JOBS);
+                    System.out.printf(Locale.ROOT, "eventLoopJobs=%-5s %8.0f jobs/s, latency us p50 %6d, p99 %6d, max %6d%n",
+                            eventLoopJobs, JOBS / (elapsed / 1e9),
+                            JobServerLoadGenerator.percentile(sorted, 50) / 1000,
+                            JobServerLoadGenerator.percentile(sorted, 99) / 1000,
+                            sorted[JOBS - 1] / 1000);
+                } finally {
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    static void awaitServer(final JobServerClient client) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                client.submit(Protocol.PROTO_CTRL + Protocol.REQUEST_STATS, IGNORE_LOG).get(1, TimeUnit.SECONDS);
+                return;
+            } catch (Exception e) {
+                if (attempt > 100) {
+                    throw new IllegalStateException("JobServer did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // @return each job's latency in nanos, followed by the total elapsed nanos
+    static long[] run(final JobServerClient client, final Path dir, final int jobs) throws Exception {
+        final long[] latencies = new long[jobs + 1];
+        final Semaphore inFlight = new Semaphore(CLIENTS);
+        final AtomicInteger failed = new AtomicInteger();
+        final long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) {
+            final Path file = Files.createFile(dir.resolve("job-" + i)); // Already there, so done on the first run
+            inFlight.acquire();
+            final int job = i;
+            final long submitted = System.nanoTime();
+            final CompletableFuture<JobServerClient.Reply> reply = client.submit(file.toString(), IGNORE_LOG);
+            reply.whenComplete((r, e) -> {
+                latencies[job] = System.nanoTime() - submitted;
+                if (e != null || !r.isDone()) {
+                    failed.incrementAndGet();
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException ignored) {
+                        // Best effort
+                    }
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(CLIENTS);
+        latencies[jobs] = System.nanoTime() - start;
+        if (failed.get() > 0) {
+            System.out.printf("%d jobs failed%n", failed.get());
+        }
+        return latencies;
+    }
+}
@@ -11,6 +11,8 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -35,15 +37,25 @@ public class JobServerClientOutputTest {
     private ChannelHandlerContext mockCtx;
     @Mock
     private ChannelFuture mockChannelFuture;
+    @Mock
+    private EventExecutor mockEventExecutor;
 
     // Captors
     private final ArgumentCaptor<ByteBuf> bbArgumentCaptor = ArgumentCaptor.forClass(ByteBuf.class);
     private final ArgumentCaptor<ChannelFutureListener> cflArgumentCaptor = ArgumentCaptor.forClass(ChannelFutureListener.class);
+    private final ArgumentCaptor<Runnable> runnableArgumentCaptor = ArgumentCaptor.forClass(Runnable.class);
 
     // Test object
     @InjectMocks
     private JobServerClientOutput jobServerClientOutput;
 
+    @Before
+    public void setUp() {
+        // Unless a test says otherwise, we're on the channel's event loop, so writes go straight through
+        when(mockCtx.executor()).thenReturn(mockEventExecutor);
+        when(mockEventExecutor.inEventLoop()).thenReturn(true);
+    }
+
     @Test
     public void testInternalOutputStream() throws IOException {
         // Test this data is faithfully set to the channel buffer via the internal OutputStream
@@ -59,6 +71,7 @@ public class JobServerClientOutputTest {
         // Verify
         verify(mockCtx, times(1)).write(bbArgumentCaptor.capture());
         verify(mockCtx, times(1)).flush();
+        verify(mockCtx, atLeastOnce()).executor();
         verifyNoMoreInteractions(mockCtx);
 
         // Assert
@@ -79,6 +92,7 @@ public class JobServerClientOutputTest {
         // Verify
         verify(mockCtx, times(1)).writeAndFlush(bbArgumentCaptor.capture());
         verify(mockChannelFuture, times(1)).addListener(cflArgumentCaptor.capture());
+        verify(mockCtx, atLeastOnce()).executor();
         verifyNoMoreInteractions(mockCtx);
         verifyNoMoreInteractions(mockChannelFuture);
 
@@ -101,6 +115,7 @@ public class JobServerClientOutputTest {
         // Verify
         verify(mockCtx, times(1)).writeAndFlush(bbArgumentCaptor.capture());
         verify(mockChannelFuture, times(1)).addListener(cflArgumentCaptor.capture());
+        verify(mockCtx, atLeastOnce()).executor();
         verifyNoMoreInteractions(mockCtx);
         verifyNoMoreInteractions(mockChannelFuture);
 
@@ -109,4 +124,61 @@ public class JobServerClientOutputTest {
         assertEquals(ChannelFutureListener.CLOSE, cflArgumentCaptor.getValue());
     }
 
+    @Test
+    public void testStats() {
+        // Test the "STATS!" reply, plus the stats line, is sent to the channel buffer and closed
+        String stats = "heapUsed=1,queue=2";
+
+        // Given
+        when(mockCtx.writeAndFlush(any())).thenReturn(mockChannelFuture);
+
+        // Run
+        jobServerClientOutput.sendStats(stats);
+
+        // Verify
+        verify(mockCtx, times(1)).writeAndFlush(bbArgumentCaptor.capture());
+        verify(mockChannelFuture, times(1)).addListener(cflArgumentCaptor.capture());
+        verifyNoMoreInteractions(mockCtx);
+        verifyNoMoreInteractions(mockChannelFuture);
+
+        // Assert
+        assertEquals(Protocol.PROTO_CTRL + Protocol.REPLY_STATS + stats + Protocol.LINE_ENDING, bbArgumentCaptor.getValue().toString(CharsetUtil.UTF_8));
+        assertEquals(ChannelFutureListener.CLOSE, cflArgumentCaptor.getValue());
+    }
+
+    @Test
+    public void testBatchedFromWorker() throws IOException {
+        // Test writes from a worker thread are queued, then written by a single event loop task with a single flush
+
+        // Given
+        when(mockEventExecutor.inEventLoop()).thenReturn(false);
+        when(mockCtx.writeAndFlush(any())).thenReturn(mockChannelFuture);
+        OutputStream os = jobServerClientOutput.getOs();
+
+        // Run, as the worker
+        os.write("one".getBytes());
+        os.flush();
+        os.write("two".getBytes());
+        os.flush();
+        jobServerClientOutput.sendDone(0);
+
+        // Verify, nothing written yet, just the one drain task handed to the event loop
+        verify(mockEventExecutor, times(1)).execute(runnableArgumentCaptor.capture());
+        verify(mockCtx, never()).write(any());
+        verify(mockCtx, never()).flush();
+
+        // Run, as the event loop
+        runnableArgumentCaptor.getValue().run();
+
+        // Verify
+        verify(mockCtx, times(2)).write(bbArgumentCaptor.capture());
+        verify(mockCtx, times(1)).writeAndFlush(any());
+        verify(mockCtx, times(1)).flush();
+        verify(mockChannelFuture, times(1)).addListener(ChannelFutureListener.CLOSE);
+
+        // Assert
+        assertEquals("one", bbArgumentCaptor.getAllValues().get(0).toString(CharsetUtil.UTF_8));
+        assertEquals("two", bbArgumentCaptor.getAllValues().get(1).toString(CharsetUtil.UTF_8));
+    }
+
 }
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class JobServerClusterTest {
+
+    private static final int NAMES = 100_000;
+    private static final String UNREACHABLE = "unreachable";
+
+    @Test
+    public void testBalanced() {
+        // Test similar (numbered) names are spread evenly, and every instance agrees on the owner
+
+        // Given
+        JobServerCluster zero = new JobServerCluster(0, 4, 20000);
+        JobServerCluster three = new JobServerCluster(3, 4, 20000);
+        int[] owned = new int[4];
+
+        // Run
+        for (int i = 0; i < NAMES; i++) {
+            String name = "/tmp/incoming/job-" + i;
+            int owner = zero.owner(name);
+            assertEquals(owner, three.owner(name));
+            owned[owner]++;
+        }
+
+        // Assert, each within 20% of a fair share
+        for (int count : owned) {
+            assertTrue("Unbalanced: " + count, Math.abs(count - NAMES / 4) < NAMES / 4 / 5);
+        }
+        assertEquals(20003, zero.getForwardPort(3));
+    }
+
+    @Test
+    public void testConsistent() {
+        // Test adding an instance only moves names onto the new instance, and only about their fair share
+
+        // Given
+        JobServerCluster before = new JobServerCluster(0, 3, 20000);
+        JobServerCluster after = new JobServerCluster(0, 4, 20000);
+        int moved = 0;
+
+        // Run
+        for (int i = 0; i < NAMES; i++) {
+            String name = "/tmp/incoming/job-" + i;
+            if (before.owner(name) != after.owner(name)) {
+                // Assert
+                assertEquals(3, after.owner(name));
+                moved++;
+            }
+        }
+
+        // Assert
+        assertTrue("Moved: " + moved, Math.abs(moved - NAMES / 4) < NAMES / 4 / 5);
+    }
+
+    @Test
+    public void testForward() throws Exception {
+        // Test a request that lands on a non-owner is replayed to the owner, in either protocol, and the replies relayed
+        // back to the client as is
+
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            // Given an owner, i.e. a real server pipeline taking forwarded work, on instance 1's forwarding port
+            Channel owner = listen(group, new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel socketChannel) {
+                    socketChannel.pipeline().addLast("negotiator", new JobServerFrameCodec.Negotiator())
+                            .addLast("handler", new JobServer.Handler(true));
+                }
+            });
+            JobServerCluster cluster = new JobServerCluster(0, 2, ((InetSocketAddress) owner.localAddress()).getPort() - 1);
+
+            // Text, i.e. a STATS! request (which the owner answers and closes)
+            String text = Protocol.PROTO_CTRL + Protocol.REQUEST_STATS;
+            String reply = new String(forwardedReply(group, cluster, Unpooled.copiedBuffer(text, CharsetUtil.UTF_8)),
+                    StandardCharsets.UTF_8);
+            assertTrue(reply, reply.startsWith(Protocol.PROTO_CTRL + Protocol.REPLY_STATS + "heapUsed="));
+            assertTrue(reply, reply.endsWith(String.valueOf(Protocol.LINE_ENDING)));
+
+            // Binary, i.e. the handshake then the same request as a frame, answered with a frame
+            ByteBuf binary = JobServer.Handler.forwardedRequest(ByteBufAllocator.DEFAULT, text,
+                    JobServerRequest.parse(text), "client", true);
+            DataInputStream frames = new DataInputStream(new ByteArrayInputStream(forwardedReply(group, cluster, binary)));
+            byte[] content = new byte[frames.readInt() - 1];
+            assertEquals(JobServerFrame.STATS, frames.readByte());
+            frames.readFully(content);
+            assertTrue(new String(content, StandardCharsets.UTF_8).startsWith("heapUsed="));
+            assertEquals(0, frames.available());
+
+            owner.close().sync();
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    @Test
+    public void testForwardUnreachable() throws Exception {
+        // Test a request for an owner that isn't there (e.g. restarting) is handed back, rather than dropped
+
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            // Given no owner, i.e. on a port that was free a moment ago
+            int port;
+            try (ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                port = free.getLocalPort();
+            }
+            JobServerCluster cluster = new JobServerCluster(0, 2, port - 1);
+
+            // Run
+            byte[] reply = forwardedReply(group, cluster, Unpooled.copiedBuffer("/tmp/foo", CharsetUtil.UTF_8));
+
+            // Assert
+            assertEquals(UNREACHABLE, new String(reply, StandardCharsets.UTF_8));
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    // Connects a client to a non-owner that forwards the given request to instance 1, and reads all it sends back, or
+    // UNREACHABLE if the owner couldn't be reached
+    private static byte[] forwardedReply(final EventLoopGroup group, final JobServerCluster cluster, final ByteBuf request)
+            throws Exception {
+        Channel nonOwner = listen(group, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelActive(final ChannelHandlerContext ctx) {
+                cluster.forward(ctx.channel(), 1, request, () -> ctx.writeAndFlush(
+                        Unpooled.copiedBuffer(UNREACHABLE, CharsetUtil.UTF_8)).addListener(ChannelFutureListener.CLOSE));
+            }
+        });
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), ((InetSocketAddress) nonOwner.localAddress()).getPort())) {
+            client.setSoTimeout(10_000);
+            try (InputStream in = client.getInputStream()) {
+                return in.readAllBytes(); // i.e. until the owner, then the non-owner, closes
+            }
+        } finally {
+            nonOwner.close().sync();
+        }
+    }
+
+    private static Channel listen(final EventLoopGroup group, final ChannelHandler childHandler) throws InterruptedException {
+        return new ServerBootstrap().group(group).channel(NioServerSocketChannel.class).childHandler(childHandler)
+                .bind(InetAddress.getLoopbackAddress(), 0).sync().channel();
+    }
+}
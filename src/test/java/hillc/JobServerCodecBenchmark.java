@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.Locale;
+
+/**
+ * Micro benchmark of the text vs binary wire protocols, i.e. what a job's replies (a run of log lines then DONE!) cost
+ * to encode on the server, and to decode on the client, plus the bytes on the wire.
+ * <p>
+ * Not a unit test, run it by hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerCodecBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class JobServerCodecBenchmark {
+
+    // Configuration
+    private static final int LINES = Integer.getInteger("benchmark.lines", 20); // Log lines per job
+    private static final int JOBS = Integer.getInteger("benchmark.jobs", 200_000); // Measured jobs, per protocol
+    private static final int WARMUP_JOBS = Integer.getInteger("benchmark.warmupJobs", 50_000);
+
+    private static final byte[] LOG_LINE = (Protocol.PROTO_LOG
+            + "2018-01-01 12:34:56.789 [pool-1-thread-3] INFO  hillc.JobServerWorkerMyBizLogic - Checking for /tmp/foo"
+            + Protocol.LINE_ENDING).getBytes(CharsetUtil.UTF_8);
+
+    public static void main(String[] args) {
+        for (Codec codec : new Codec[]{new Text(), new Binary()}) {
+            codec.run(WARMUP_JOBS);
+            final long[] result = codec.run(JOBS);
+            final long messages = (long) JOBS * (LINES + 1);
+            System.out.printf(Locale.ROOT, "%-6s encode %6.1f ns/msg, decode %6.1f ns/msg, %5.1f bytes/msg%n",
+                    codec.name(), (double) result[0] / messages, (double) result[1] / messages, (double) result[2] / messages);
+        }
+    }
+
+    /**
+     * One protocol, encoded through the server side output, and decoded through the client side pipeline
+     */
+    private abstract static class Codec {
+        abstract String name();
+
+        abstract EmbeddedChannel server();
+
+        abstract EmbeddedChannel client();
+
+        abstract JobServerClientOutput output(EmbeddedChannel server);
+
+        abstract void consume(Object msg); // What a client does with each decoded reply
+
+        // @return encode nanos, decode nanos, wire bytes
+        long[] run(final int jobs) {
+            final EmbeddedChannel server = server();
+            final EmbeddedChannel client = client();
+            final JobServerClientOutput output = output(server);
+            final ByteBuf wire = Unpooled.directBuffer();
+            long encodeNanos = 0, decodeNanos = 0, bytes = 0;
+
+            for (int job = 0; job < jobs; job++) {
+                // Server side, the log lines then the terminal reply
+                long start = System.nanoTime();
+                for (int line = 0; line < LINES; line++) {
+                    server.writeOutbound(output.encodeLog(LOG_LINE, 0, LOG_LINE.length));
+                }
+                server.writeOutbound(output.encodeTerminal(Protocol.REPLY_DONE, 0));
+                for (ByteBuf b; (b = server.readOutbound()) != null; b.release()) {
+                    wire.writeBytes(b);
+                }
+                encodeNanos += System.nanoTime() - start;
+                bytes += wire.readableBytes();
+
+                // Client side, all of it arriving in one read
+                start = System.nanoTime();
+                client.writeInbound(wire.retain());
+                for (Object msg; (msg = client.readInbound()) != null; ) {
+                    consume(msg);
+                }
+                decodeNanos += System.nanoTime() - start;
+                wire.clear();
+            }
+            wire.release();
+            server.finishAndReleaseAll();
+            client.finishAndReleaseAll();
+            return new long[]{encodeNanos, decodeNanos, bytes};
+        }
+    }
+
+    private static class Text extends Codec {
+        @Override
+        String name() {
+            return "text";
+        }
+
+        @Override
+        EmbeddedChannel server() {
+            return new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        }
+
+        @Override
+        EmbeddedChannel client() {
+            return new EmbeddedChannel(new LineBasedFrameDecoder(64 * 1024), new StringDecoder(CharsetUtil.UTF_8));
+        }
+
+        @Override
+        JobServerClientOutput output(final EmbeddedChannel server) {
+            return new JobServerClientOutput(server.pipeline().firstContext());
+        }
+
+        @Override
+        void consume(final Object msg) {
+            final String line = (String) msg;
+            if (line.startsWith(Protocol.PROTO_LOG)) {
+                line.substring(Protocol.PROTO_LOG.length());
+            } else {
+                JobServerClient.Reply.parse(line.substring(Protocol.PROTO_CTRL.length())).getReturnCode();
+            }
+        }
+    }
+
+    private static class Binary extends Codec {
+        @Override
+        String name() {
+            return "binary";
+        }
+
+        @Override
+        EmbeddedChannel server() {
+            final EmbeddedChannel channel = new EmbeddedChannel();
+            channel.pipeline().addLast("handler", new ChannelInboundHandlerAdapter());
+            JobServerFrameCodec.addTo(channel.pipeline(), "handler");
+            return channel;
+        }
+
+        @Override
+        EmbeddedChannel client() {
+            final EmbeddedChannel channel = new EmbeddedChannel();
+            channel.pipeline().addLast("handler", new ChannelInboundHandlerAdapter());
+            JobServerFrameCodec.addTo(channel.pipeline(), "handler");
+            channel.pipeline().remove("handler");
+            return channel;
+        }
+
+        @Override
+        JobServerClientOutput output(final EmbeddedChannel server) {
+            return new JobServerClientOutput.Binary(server.pipeline().context("handler"));
+        }
+
+        @Override
+        void consume(final Object msg) {
+            final JobServerFrame frame = (JobServerFrame) msg;
+            if (frame.type() == JobServerFrame.LOG) {
+                frame.contentAsString();
+            } else {
+                frame.contentAsInt();
+            }
+            frame.release();
+        }
+    }
+}
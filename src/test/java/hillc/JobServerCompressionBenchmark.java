@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures what each JobServerCompression saves, and costs, on a realistic client log stream, i.e. lines in the
+ * JobServerRunnable pattern, each flushed on its own as logback does, with a fresh compressor per job (connection).
+ * <p>
+ * Not a unit test, run it by hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerCompressionBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class JobServerCompressionBenchmark {
+
+    // Configuration
+    private static final int LINES = Integer.getInteger("benchmark.lines", 500); // Log lines per job
+    private static final int JOBS = Integer.getInteger("benchmark.jobs", 2_000); // Measured jobs, per compression
+    private static final int WARMUP_JOBS = Integer.getInteger("benchmark.warmupJobs", 500);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    public static void main(String[] args) {
+        final List<byte[]> job = logStream(new Random(42));
+        long raw = 0;
+        for (byte[] line : job) {
+            raw += line.length;
+        }
+        System.out.printf(Locale.ROOT, "%d lines, %d bytes per job uncompressed%n", LINES, raw);
+
+        for (JobServerCompression compression : new JobServerCompression[]{null, JobServerCompression.DEFLATE, JobServerCompression.SNAPPY}) {
+            run(compression, job, WARMUP_JOBS);
+            final long[] result = run(compression, job, JOBS);
+            final double megabytes = (double) raw * JOBS / (1024 * 1024);
+            System.out.printf(Locale.ROOT, "%-8s %8.0f bytes/job (%5.1f%%), compress %6.2f cpu ms/MB, decompress %6.2f cpu ms/MB%n",
+                    compression == null ? "none" : compression.optionValue(), (double) result[0] / JOBS,
+                    100.0 * result[0] / (raw * JOBS), result[1] / 1e6 / megabytes, result[2] / 1e6 / megabytes);
+        }
+    }
+
+    // @return compressed bytes, compress cpu nanos, decompress cpu nanos
+    private static long[] run(final JobServerCompression compression, final List<byte[]> job, final int jobs) {
+        long bytes = 0, compressNanos = 0, decompressNanos = 0;
+        for (int i = 0; i < jobs; i++) {
+            final EmbeddedChannel server = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+            final EmbeddedChannel client = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+            if (compression != null) {
+                compression.addEncoderTo(server.pipeline());
+                compression.addDecoderTo(client.pipeline());
+            }
+
+            long start = THREADS.getCurrentThreadCpuTime();
+            final List<ByteBuf> wire = new ArrayList<>();
+            for (byte[] line : job) {
+                server.writeAndFlush(Unpooled.wrappedBuffer(line));
+                for (ByteBuf b; (b = server.readOutbound()) != null; ) {
+                    bytes += b.readableBytes();
+                    wire.add(b);
+                }
+            }
+            compressNanos += THREADS.getCurrentThreadCpuTime() - start;
+
+            start = THREADS.getCurrentThreadCpuTime();
+            for (ByteBuf b : wire) {
+                client.writeInbound(b);
+                for (ByteBuf d; (d = client.readInbound()) != null; ) {
+                    d.release();
+                }
+            }
+            decompressNanos += THREADS.getCurrentThreadCpuTime() - start;
+
+            server.finishAndReleaseAll();
+            client.finishAndReleaseAll();
+        }
+        return new long[]{bytes, compressNanos, decompressNanos};
+    }
+
+    // A chatty job, i.e. the lines a business logic worker logs while polling, then the DONE!
+    private static List<byte[]> logStream(final Random random) {
+        final String[] levels = {"INFO ", "INFO ", "INFO ", "DEBUG", "WARN "};
+        final List<byte[]> lines = new ArrayList<>();
+        LocalDateTime time = LocalDateTime.of(2018, 1, 1, 12, 0, 0);
+        for (int i = 0; i < LINES; i++) {
+            time = time.plusSeconds(random.nextInt(3));
+            final String msg;
+            switch (random.nextInt(4)) {
+                case 0:
+                    msg = "Checking for /data/incoming/feed-" + random.nextInt(100) + "/batch_" + (1000 + i) + ".csv";
+                    break;
+                case 1:
+                    msg = "Processed record " + i * 37 + " of 100000 for account ACC-" + (10000 + random.nextInt(90000)) + " in " + random.nextInt(50) + "ms";
+                    break;
+                case 2:
+                    msg = "Checked " + (i + 1) + " targets, found " + random.nextInt(3) + " new, " + i / 2 + " of " + LINES + " complete";
+                    break;
+                default:
+                    msg = "Retrying connection to db-" + random.nextInt(4) + ".example.com:5432 (attempt " + (1 + random.nextInt(5)) + ")";
+            }
+            lines.add((Protocol.PROTO_LOG + TIMESTAMP.format(time) + " [pool-1-thread-" + (1 + random.nextInt(8)) + "] "
+                    + levels[random.nextInt(levels.length)] + " - " + msg + Protocol.LINE_ENDING).getBytes(CharsetUtil.UTF_8));
+        }
+        lines.add((Protocol.PROTO_CTRL + Protocol.REPLY_DONE + 0 + Protocol.LINE_ENDING).getBytes(CharsetUtil.UTF_8));
+        return lines;
+    }
+}
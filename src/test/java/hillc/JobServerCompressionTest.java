@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JobServerCompressionTest {
+
+    @Test
+    public void testOf() {
+        assertEquals(JobServerCompression.DEFLATE, JobServerCompression.of("deflate"));
+        assertEquals(JobServerCompression.SNAPPY, JobServerCompression.of(" Snappy "));
+        assertNull(JobServerCompression.of("lz4"));
+    }
+
+    @Test
+    public void testDeflate() {
+        testFlushPoints(JobServerCompression.DEFLATE);
+    }
+
+    @Test
+    public void testSnappy() {
+        testFlushPoints(JobServerCompression.SNAPPY);
+    }
+
+    // Test every flush can be decoded in full by the client, before anything else is sent
+    private static void testFlushPoints(final JobServerCompression compression) {
+        // Given
+        EmbeddedChannel server = new EmbeddedChannel();
+        compression.addEncoderTo(server.pipeline());
+        EmbeddedChannel client = new EmbeddedChannel();
+        compression.addDecoderTo(client.pipeline());
+
+        for (int i = 0; i < 3; i++) {
+            // Run, two writes then a flush
+            server.write(Unpooled.copiedBuffer("line " + i + ", ", CharsetUtil.UTF_8));
+            server.write(Unpooled.copiedBuffer("more\n", CharsetUtil.UTF_8));
+            assertNull(server.readOutbound()); // Held back until the flush
+            server.flush();
+
+            // Assert, the writes arrive as one compressed block
+            ByteBuf compressed = server.readOutbound();
+            assertNotNull(compressed);
+            assertNull(server.readOutbound());
+            client.writeInbound(compressed);
+            assertEquals("line " + i + ", more\n", readAll(client));
+        }
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+
+    private static String readAll(final EmbeddedChannel channel) {
+        StringBuilder sb = new StringBuilder();
+        for (ByteBuf b; (b = channel.readInbound()) != null; b.release()) {
+            sb.append(b.toString(CharsetUtil.UTF_8));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JobServerFrameCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        // Test frames survive encoding, and decoding from arbitrarily fragmented bytes
+
+        // Given
+        EmbeddedChannel out = newChannel();
+        EmbeddedChannel in = newChannel();
+        assertTrue(out.writeOutbound(JobServerFrame.ofString(ByteBufAllocator.DEFAULT, JobServerFrame.LOG, "Hello, World!")));
+        assertTrue(out.writeOutbound(JobServerFrame.ofInt(ByteBufAllocator.DEFAULT, JobServerFrame.DONE, 123)));
+        ByteBuf wire = Unpooled.buffer();
+        for (ByteBuf b; (b = out.readOutbound()) != null; b.release()) {
+            wire.writeBytes(b);
+        }
+
+        // Run, one byte at a time
+        while (wire.isReadable()) {
+            in.writeInbound(wire.readRetainedSlice(1));
+        }
+        wire.release();
+
+        // Assert
+        JobServerFrame log = in.readInbound();
+        assertEquals(JobServerFrame.LOG, log.type());
+        assertEquals("Hello, World!", log.contentAsString());
+        log.release();
+        JobServerFrame done = in.readInbound();
+        assertEquals(JobServerFrame.DONE, done.type());
+        assertEquals(123, done.contentAsInt());
+        done.release();
+        assertNull(in.readInbound());
+    }
+
+    @Test
+    public void testNegotiator() {
+        // Test the handshake byte switches the pipeline to frames, and its absence leaves text untouched
+
+        // Given
+        EmbeddedChannel binary = newServerChannel();
+        EmbeddedChannel text = newServerChannel();
+        ByteBuf frame = Unpooled.buffer().writeByte(JobServerFrame.HANDSHAKE).writeInt(4).writeByte(JobServerFrame.REQUEST).writeBytes("foo".getBytes());
+
+        // Run
+        binary.writeInbound(frame);
+        text.writeInbound(Unpooled.copiedBuffer("foo".getBytes()));
+
+        // Assert
+        JobServerFrame request = binary.readInbound();
+        assertEquals(JobServerFrame.REQUEST, request.type());
+        assertEquals("foo", request.contentAsString());
+        request.release();
+        assertNull(binary.pipeline().get("negotiator"));
+
+        ByteBuf raw = text.readInbound();
+        assertEquals("foo", raw.toString(CharsetUtil.UTF_8));
+        raw.release();
+        assertNull(text.pipeline().get("frameCodec"));
+    }
+
+    @Test
+    public void testEmptyFrame() {
+        // Test a frame too short to have a type is rejected, rather than read past its end
+
+        // Given
+        EmbeddedChannel in = newChannel();
+
+        // Run, and assert
+        try {
+            in.writeInbound(Unpooled.buffer().writeInt(0));
+            fail("Expected the frame to be rejected");
+        } catch (CorruptedFrameException e) {
+            // Expected
+        }
+        assertNull(in.readInbound());
+    }
+
+    private static EmbeddedChannel newChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("handler", new ChannelInboundHandlerAdapter());
+        JobServerFrameCodec.addTo(channel.pipeline(), "handler");
+        channel.pipeline().remove("handler"); // So inbound frames end up in the channel's inbound queue
+        return channel;
+    }
+
+    private static EmbeddedChannel newServerChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("negotiator", new JobServerFrameCodec.Negotiator())
+                .addLast("handler", new ChannelInboundHandlerAdapter());
+        return channel;
+    }
+}
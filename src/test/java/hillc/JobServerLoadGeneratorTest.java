@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JobServerLoadGeneratorTest {
+
+    private static final int DRAWS = 100_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPercentile() {
+        // Test nearest rank, i.e. always one of the values, rounding up
+        long[] sorted = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        assertEquals(1, JobServerLoadGenerator.percentile(sorted, 0.1));
+        assertEquals(5, JobServerLoadGenerator.percentile(sorted, 50));
+        assertEquals(6, JobServerLoadGenerator.percentile(sorted, 51));
+        assertEquals(9, JobServerLoadGenerator.percentile(sorted, 90));
+        assertEquals(10, JobServerLoadGenerator.percentile(sorted, 99.9));
+        assertEquals(10, JobServerLoadGenerator.percentile(sorted, 100));
+        assertEquals(7, JobServerLoadGenerator.percentile(new long[]{7}, 50));
+        assertEquals(0, JobServerLoadGenerator.percentile(new long[0], 50));
+    }
+
+    @Test
+    public void testParseStats() {
+        // Test a stats line is parsed in order, skipping anything that isn't a key=value pair
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("heapUsed", "123");
+        expected.put("queue", "0");
+        expected.put("lagMillis", "45");
+        assertEquals(expected, JobServerLoadGenerator.parseStats("heapUsed=123,queue=0,junk,=1,lagMillis=45"));
+        assertTrue(JobServerLoadGenerator.parseStats("").isEmpty());
+    }
+
+    @Test
+    public void testArrival() {
+        // Test each arrival distribution stays in range, and averages out to the mean
+        for (JobServerLoadGenerator.Arrival arrival : JobServerLoadGenerator.Arrival.values()) {
+            long total = 0;
+            for (int i = 0; i < DRAWS; i++) {
+                long delay = arrival.nextDelayMillis(1000);
+                assertTrue(arrival + ": " + delay, delay >= 0);
+                if (arrival == JobServerLoadGenerator.Arrival.FIXED) {
+                    assertEquals(1000, delay);
+                } else if (arrival == JobServerLoadGenerator.Arrival.UNIFORM) {
+                    assertTrue(arrival + ": " + delay, delay < 2000);
+                }
+                total += delay;
+            }
+            assertEquals(arrival.toString(), 1000, (double) total / DRAWS, 1000 * 0.05);
+        }
+    }
+
+    @Test
+    public void testJsonString() {
+        // Test anything that would break the JSON is escaped
+        assertEquals("\"abc-123\"", JobServerLoadGenerator.jsonString("abc-123"));
+        assertEquals("\"say \\\"hi\\\" C:\\\\tmp\\n\\u0001\"", JobServerLoadGenerator.jsonString("say \"hi\" C:\\tmp\n\u0001"));
+    }
+
+    @Test
+    public void testDeleteAll() throws IOException {
+        // Test the directory goes, even with files left in it
+        File dir = folder.newFolder();
+        assertTrue(new File(dir, "job-1").createNewFile());
+        JobServerLoadGenerator.deleteAll(dir.toPath());
+        assertFalse(dir.exists());
+    }
+}
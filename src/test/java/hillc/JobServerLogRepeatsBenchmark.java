@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import ch.qos.logback.classic.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares what a waiting job costs to keep its client informed, at each verbosity (see JobServerLogRepeats), i.e. a
+ * day's worth of runs at the default 30s interval (on a simulated clock), each logging "Checking for ..." for a file
+ * that never arrives. Reports the bytes sent to the client, and the CPU time spent, per waiting job.
+ * <p>
+ * N.B. The server's own log is switched off here, as it gets every line whatever the client's verbosity.
+ * <p>
+ * Not a unit test, run it by hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerLogRepeatsBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class JobServerLogRepeatsBenchmark {
+
+    // Configuration
+    private static final int RUNS = Integer.getInteger("benchmark.runs", 2880); // Per job, i.e. a day at 30s intervals
+    private static final int INTERVAL_SECONDS = 30;
+    private static final int SUMMARY_SECONDS = Integer.getInteger("benchmark.summarySeconds", 600); // As jobserver.logSummarySeconds
+    private static final int JOBS = Integer.getInteger("benchmark.jobs", 100); // Measured jobs, per verbosity
+    private static final int WARMUP_JOBS = Integer.getInteger("benchmark.warmupJobs", 100);
+
+    public static void main(String[] args) {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).detachAndStopAllAppenders();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1); // Only to park the reschedules
+        executor.setRemoveOnCancelPolicy(true);
+        try {
+            for (int round = 0; round < 2; round++) { // i.e. warm up, then measure
+                for (JobServerLogRepeats.Verbosity verbosity : JobServerLogRepeats.Verbosity.values()) {
+                    final int jobs = round == 0 ? WARMUP_JOBS : JOBS;
+                    long bytes = 0;
+                    final long cpu = threads.getCurrentThreadCpuTime();
+                    for (int job = 0; job < jobs; job++) {
+                        bytes += runJob(executor, verbosity, "/nonexistent/job-" + job);
+                    }
+                    if (round == 1) {
+                        System.out.printf(Locale.ROOT, "clientLog=%-7s %,10d bytes/job, %8.1f ms CPU/job%n",
+                                verbosity.name().toLowerCase(Locale.ROOT), bytes / jobs,
+                                (threads.getCurrentThreadCpuTime() - cpu) / 1e6 / jobs);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // @return the bytes sent to the client
+    private static long runJob(final ScheduledThreadPoolExecutor executor, final JobServerLogRepeats.Verbosity verbosity,
+                               final String filename) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter()); // Writes straight through
+        final JobServerClientOutput output = new JobServerClientOutput(channel.pipeline().firstContext());
+        final long[] clock = {0}; // Simulated, so the summaries come at the same intervals as they would over the day
+        final JobServerRunnable runnable = new JobServerRunnable(executor, output, new JobServerWorkerMyBizLogic(INTERVAL_SECONDS, filename),
+                verbosity == JobServerLogRepeats.Verbosity.ALL ? null : new JobServerLogRepeats(verbosity, SUMMARY_SECONDS, () -> clock[0]));
+        long bytes = 0;
+        for (int run = 0; run < RUNS; run++) {
+            clock[0] += TimeUnit.SECONDS.toNanos(INTERVAL_SECONDS);
+            runnable.run();
+            final ScheduledFuture<?> next = runnable.getScheduledFuture();
+            next.cancel(false); // We run it ourselves, straight away
+            for (ByteBuf buf; (buf = channel.readOutbound()) != null; ) {
+                bytes += buf.readableBytes();
+                buf.release();
+            }
+        }
+        channel.close();
+        return bytes;
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import hillc.JobServerLogRepeats.Action;
+import hillc.JobServerLogRepeats.Verbosity;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class JobServerLogRepeatsTest {
+
+    private static final Logger LOGGER = (Logger) LoggerFactory.getLogger(JobServerLogRepeatsTest.class);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private static LoggingEvent event(final Level level, final String message, final Object... args) {
+        return new LoggingEvent(JobServerLogRepeatsTest.class.getName(), LOGGER, level, message, null, args);
+    }
+
+    @Test
+    public void testSummary() {
+        // Test repeats are held back, then summarised once something else is logged
+
+        // Given
+        final JobServerLogRepeats repeats = new JobServerLogRepeats(Verbosity.SUMMARY, 60, clock::get);
+
+        // Run, and assert
+        assertEquals(Action.SEND, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+        assertEquals(Action.HOLD, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+        assertEquals(Action.HOLD, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+        assertEquals(Action.SUMMARISE_THEN_SEND, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/bar")));
+        assertEquals(2, repeats.takeRepeats());
+        assertEquals(Action.SEND, repeats.offer(event(Level.WARN, "Checking for {}", "/tmp/bar"))); // Level matters
+        assertEquals(0, repeats.takeRepeats());
+    }
+
+    @Test
+    public void testSummaryOfRepeated() {
+        // Test the summary is of the repeated message, even once something else has been logged
+
+        // Given
+        final JobServerLogRepeats repeats = new JobServerLogRepeats(Verbosity.SUMMARY, 60, clock::get);
+        assertEquals(Action.SEND, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+        assertNull(repeats.getRepeated());
+        assertEquals(Action.HOLD, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+        assertEquals(Action.HOLD, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+        assertEquals(Action.SUMMARISE_THEN_SEND, repeats.offer(event(Level.WARN, "Checking for {}", "/tmp/bar")));
+        assertEquals(Level.INFO, repeats.getRepeated().getLevel()); // i.e. the summary is of the repeats, not the new one
+        assertEquals("/tmp/foo", repeats.getRepeated().getArgumentArray()[0]);
+        assertEquals(2, repeats.takeRepeats());
+        assertNull(repeats.getRepeated());
+    }
+
+    @Test
+    public void testSummaryInterval() {
+        // Test an unbroken run of repeats is still summarised every so often
+
+        // Given
+        final JobServerLogRepeats repeats = new JobServerLogRepeats(Verbosity.SUMMARY, 60, clock::get);
+        assertEquals(Action.SEND, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+
+        // Run, and assert, a repeat every 30s
+        for (int i = 0; i < 2; i++) {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+            assertEquals(Action.HOLD, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+            assertEquals(Action.SUMMARISE, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+            assertEquals(2, repeats.takeRepeats());
+        }
+    }
+
+    @Test
+    public void testQuiet() {
+        // Test nothing is sent, and nothing summarised, when quiet
+
+        // Given
+        final JobServerLogRepeats repeats = new JobServerLogRepeats(Verbosity.QUIET, 60, clock::get);
+        final long heldBack = JobServerLogRepeats.getHeldBack();
+
+        // Run, and assert
+        assertEquals(Action.HOLD, repeats.offer(event(Level.INFO, "Checking for {}", "/tmp/foo")));
+        assertEquals(Action.HOLD, repeats.offer(event(Level.INFO, "Found file '{}'", "/tmp/foo")));
+        assertEquals(0, repeats.takeRepeats());
+        assertTrue(JobServerLogRepeats.getHeldBack() >= heldBack + 2);
+    }
+
+    @Test
+    public void testVerbosityOf() {
+        assertEquals(Verbosity.ALL, Verbosity.of("all"));
+        assertEquals(Verbosity.SUMMARY, Verbosity.of(" Summary"));
+        assertNull(Verbosity.of("chatty"));
+    }
+}
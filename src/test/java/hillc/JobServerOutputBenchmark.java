@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares how worker output reaches the event loop, i.e. one task per write/flush (-Djobserver.batchWrites=false) vs
+ * ring buffer batches (the default). A worker thread logs many lines per job, as logback does (write then flush),
+ * through an in-VM channel, counting the tasks the server's event loop is handed, and the lines per second delivered.
+ * <p>
+ * Not a unit test, run it by hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerOutputBenchmark -Dexec.classpathScope=test
+ * </pre>
+ * which runs each mode in its own JVM, as the mode is fixed at class load.
+ */
+public class JobServerOutputBenchmark {
+
+    // Configuration
+    private static final int LINES = Integer.getInteger("benchmark.lines", 100_000); // Log lines per job
+    private static final int JOBS = Integer.getInteger("benchmark.jobs", 20); // Measured jobs, per mode
+    private static final int WARMUP_JOBS = Integer.getInteger("benchmark.warmupJobs", 10);
+
+    private static final byte[] LOG_LINE = (Protocol.PROTO_LOG
+            + "2018-01-01 12:34:56 [pool-1-thread-3] INFO  - Processed record 12345 of 100000 for account ACC-42"
+            + Protocol.LINE_ENDING).getBytes(CharsetUtil.UTF_8);
+
+    private static final LongAdder TASKS = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            for (String batchWrites : new String[]{"false", "true"}) {
+                final Process process = new ProcessBuilder(Arrays.asList(
+                        System.getProperty("java.home") + "/bin/java",
+                        "-Djobserver.batchWrites=" + batchWrites,
+                        "-Dbenchmark.lines=" + LINES, "-Dbenchmark.jobs=" + JOBS, "-Dbenchmark.warmupJobs=" + WARMUP_JOBS,
+                        "-cp", System.getProperty("java.class.path"),
+                        JobServerOutputBenchmark.class.getName(), batchWrites))
+                        .inheritIO().start();
+                process.waitFor();
+            }
+            return;
+        }
+
+        // Counts every task handed to the server's event loop, including the lazy (write only) ones
+        final EventLoopGroup serverGroup = new DefaultEventLoopGroup(1) {
+            @Override
+            protected EventLoop newChild(final Executor executor, final Object... args) {
+                return new DefaultEventLoop(this, executor) {
+                    @Override
+                    public void execute(final Runnable task) {
+                        TASKS.increment();
+                        super.execute(task);
+                    }
+
+                    @Override
+                    public void lazyExecute(final Runnable task) {
+                        TASKS.increment();
+                        super.lazyExecute(task);
+                    }
+                };
+            }
+        };
+        final EventLoopGroup clientGroup = new DefaultEventLoopGroup(1);
+        final LocalAddress address = new LocalAddress("benchmark");
+        final CompletableFuture<ChannelHandlerContext>[] accepted = new CompletableFuture[1];
+
+        try {
+            new ServerBootstrap().group(serverGroup).channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public boolean isSharable() {
+                            return true;
+                        }
+
+                        @Override
+                        public void channelActive(final ChannelHandlerContext ctx) {
+                            accepted[0].complete(ctx);
+                        }
+                    })
+                    .bind(address).sync();
+
+            for (int job = 0; job < WARMUP_JOBS; job++) {
+                runJob(clientGroup, address, accepted);
+            }
+            TASKS.reset();
+            long lines = 0;
+            final long start = System.nanoTime();
+            for (int job = 0; job < JOBS; job++) {
+                lines += runJob(clientGroup, address, accepted);
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "batchWrites=%-5s %8.3f event loop tasks/line, %,10.0f lines/s%n",
+                    args[0], (double) TASKS.sum() / lines, lines / seconds);
+        } finally {
+            serverGroup.shutdownGracefully();
+            clientGroup.shutdownGracefully();
+        }
+    }
+
+    // @return lines received by the client
+    private static long runJob(final EventLoopGroup clientGroup, final LocalAddress address,
+                               final CompletableFuture<ChannelHandlerContext>[] accepted) throws Exception {
+        accepted[0] = new CompletableFuture<>();
+        final CompletableFuture<Long> received = new CompletableFuture<>();
+        new Bootstrap().group(clientGroup).channel(LocalChannel.class)
+                .handler(new ChannelInboundHandlerAdapter() {
+                    private long bytes = 0;
+
+                    @Override
+                    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+                        bytes += ((ByteBuf) msg).readableBytes();
+                        ReferenceCountUtil.release(msg);
+                    }
+
+                    @Override
+                    public void channelInactive(final ChannelHandlerContext ctx) {
+                        received.complete(bytes / LOG_LINE.length);
+                    }
+                })
+                .connect(address).sync();
+
+        // This (main) thread plays the worker
+        final JobServerClientOutput output = new JobServerClientOutput(accepted[0].get());
+        final OutputStream os = output.getOs();
+        for (int i = 0; i < LINES; i++) {
+            os.write(LOG_LINE, 0, LOG_LINE.length);
+            os.flush();
+        }
+        output.sendDone(0);
+        return received.get();
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class JobServerPoolSizerTest {
+
+    private static final long GROW_LAG_MILLIS = 100;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Test clock, so we control time
+    private final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    // Synthetic measurements, so we control how far behind the queue is, and how busy the workers are
+    private final AtomicLong lagMillis = new AtomicLong();
+    private final SyntheticExecutor pool = new SyntheticExecutor();
+    private final JobServerPoolSizer sizer = new JobServerPoolSizer(pool, 1, 8, GROW_LAG_MILLIS, 0.5, now::get, lagMillis::get);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testGrowsThenShrinks() {
+        // Test the pool grows while the queue is lagging with every worker busy (e.g. stalled on I/O), then shrinks back
+        // down, one thread at a time, once it is on time with workers to spare
+
+        // Assert a single lagging tick isn't enough, nor is lag with idle workers (as more threads won't help)
+        tick(1000, 1.0);
+        tick(0, 1.0);
+        tick(1000, 0.2);
+        tick(1000, 0.2);
+        assertEquals(1, pool.getCorePoolSize());
+        assertEquals(0, sizer.getGrows());
+
+        // Run, lagging, and assert it grows by half (at least one thread) every GROW_TICKS, up to the maximum
+        for (int size : new int[]{2, 3, 4, 6, 8, 8}) {
+            for (int i = 0; i < JobServerPoolSizer.GROW_TICKS; i++) {
+                tick(1000, 1.0);
+            }
+            assertEquals(size, pool.getCorePoolSize());
+        }
+        assertEquals(5, sizer.getGrows());
+        assertEquals(1.0, sizer.getBusyRatio(), 0.001);
+
+        // Run, caught up and quiet, and assert it shrinks by one every SHRINK_TICKS, down to the minimum
+        for (int size = 8; size > 1; size--) {
+            for (int i = 0; i < JobServerPoolSizer.SHRINK_TICKS - 1; i++) {
+                tick(0, 0.1);
+            }
+            assertEquals(size, pool.getCorePoolSize()); // i.e. not yet
+            tick(0, 0.1);
+            assertEquals(size - 1, pool.getCorePoolSize());
+        }
+        for (int i = 0; i < JobServerPoolSizer.SHRINK_TICKS; i++) {
+            tick(0, 0.1);
+        }
+        assertEquals(1, pool.getCorePoolSize());
+        assertEquals(7, sizer.getShrinks());
+    }
+
+    @Test
+    public void testBusyRatio() throws InterruptedException {
+        // Test the busy ratio includes work that is still running
+
+        // Given a real pool, with one task that has been running for the whole tick
+        JobServerPoolSizer.BusyTimedExecutor real = new JobServerPoolSizer.BusyTimedExecutor(1, now::get);
+        JobServerPoolSizer realSizer = new JobServerPoolSizer(real, 1, 1, GROW_LAG_MILLIS, 0.5, now::get, lagMillis::get);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            real.execute(() -> {
+                running.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+
+            // Run
+            realSizer.tick();
+
+            // Assert
+            assertEquals(1.0, realSizer.getBusyRatio(), 0.001);
+        } finally {
+            release.countDown();
+            real.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLagRecoversUnderStalls() throws InterruptedException {
+        // Test, end to end with real threads and time, that workers stalled on (simulated) slow I/O leave the queue
+        // lagging, so the pool grows, and the queue then catches up
+
+        // Given a single thread pool, and a burst of work that stalls, i.e. 2s of it for one thread
+        JobServerPoolSizer.BusyTimedExecutor real = new JobServerPoolSizer.BusyTimedExecutor(1, System::nanoTime);
+        JobServerPoolSizer realSizer = new JobServerPoolSizer(real, 1, 8, 50, 0.5, System::nanoTime);
+        int tasks = 100;
+        try {
+            for (int i = 0; i < tasks; i++) {
+                real.execute(() -> stall(20));
+            }
+
+            // Run, ticking as the stats timer would (only faster), until the work is done
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            int largest = real.getCorePoolSize();
+            long worstLag = 0;
+            while (real.getCompletedTaskCount() < tasks) {
+                assertTrue("Work never finished", System.nanoTime() < deadline);
+                Thread.sleep(50);
+                worstLag = Math.max(worstLag, JobServerPoolSizer.queueLagMillis(real));
+                realSizer.tick();
+                largest = Math.max(largest, real.getCorePoolSize());
+            }
+
+            // Assert the queue fell behind, the pool grew to catch up, and it did
+            assertTrue("Lag: " + worstLag, worstLag >= 50);
+            assertTrue(realSizer.getGrows() > 0);
+            assertTrue("Largest: " + largest, largest > 1);
+            assertEquals(0, JobServerPoolSizer.queueLagMillis(real));
+        } finally {
+            real.shutdownNow();
+        }
+    }
+
+    // Simulates a worker blocked on slow I/O
+    private static void stall(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // One tick's worth of time passing, with the queue this far behind, and the workers this busy
+    private void tick(final long lag, final double busyRatio) {
+        lagMillis.set(lag);
+        pool.busyNanos += (long) (busyRatio * TICK_NANOS * pool.getCorePoolSize());
+        now.addAndGet(TICK_NANOS);
+        sizer.tick();
+    }
+
+    // A pool that never runs anything, but reports however busy we say
+    private final class SyntheticExecutor extends JobServerPoolSizer.BusyTimedExecutor {
+        private long busyNanos = 0;
+
+        private SyntheticExecutor() {
+            super(1, now::get);
+        }
+
+        @Override
+        long getBusyNanos(final long now) {
+            return busyNanos;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class JobServerRateLimiterTest {
+
+    // Test clock, so we control time
+    private final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    @Test
+    public void testUnlimited() {
+        // Given
+        JobServerRateLimiter rateLimiter = new JobServerRateLimiter(0, 1, 0, now::get);
+        JobServerRateLimiter.Client client = rateLimiter.client("foo");
+
+        // Assert
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, rateLimiter.admit(client));
+        }
+    }
+
+    @Test
+    public void testBurstThenReject() {
+        // Test 10/second with a burst of 5, rejecting rather than delaying
+
+        // Given
+        JobServerRateLimiter rateLimiter = new JobServerRateLimiter(10, 5, 0, now::get);
+        JobServerRateLimiter.Client client = rateLimiter.client("foo");
+
+        // Assert the burst is let in, then we are over quota
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, rateLimiter.admit(client));
+        }
+        assertEquals(JobServerRateLimiter.REJECT, rateLimiter.admit(client));
+
+        // ...but other clients are unaffected
+        assertEquals(0, rateLimiter.admit(rateLimiter.client("bar")));
+
+        // ...and after 100ms we have earned another token
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, rateLimiter.admit(client));
+        assertEquals(JobServerRateLimiter.REJECT, rateLimiter.admit(client));
+    }
+
+    @Test
+    public void testDelayedAdmission() {
+        // Test 10/second with a burst of 1, delaying up to 250ms
+
+        // Given
+        JobServerRateLimiter rateLimiter = new JobServerRateLimiter(10, 1, 250, now::get);
+        JobServerRateLimiter.Client client = rateLimiter.client("foo");
+
+        // Assert each one is spaced out by 100ms, until the delay would be too long
+        assertEquals(0, rateLimiter.admit(client));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), rateLimiter.admit(client));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), rateLimiter.admit(client));
+        assertEquals(JobServerRateLimiter.REJECT, rateLimiter.admit(client));
+    }
+
+    @Test
+    public void testForgetsIdleClients() {
+        // Test 10/second with a burst of 1, so a client's bucket is full again soon after its last job
+
+        // Given a client that is held, e.g. by a request being admitted, with a full bucket
+        JobServerRateLimiter rateLimiter = new JobServerRateLimiter(10, 1, 0, now::get);
+        JobServerRateLimiter.Client client = rateLimiter.client("foo");
+
+        // Assert it is remembered while held, so the admission counts
+        rateLimiter.decay(false);
+        assertEquals(0, rateLimiter.admit(client));
+        rateLimiter.release(client);
+
+        // ...and while its bucket is refilling
+        rateLimiter.decay(false);
+        JobServerRateLimiter.Client again = rateLimiter.client("foo");
+        assertSame(client, again);
+        assertEquals(JobServerRateLimiter.REJECT, rateLimiter.admit(again));
+        rateLimiter.release(again);
+
+        // ...but forgotten once it is full again, and no one holds it
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+        rateLimiter.decay(false);
+        JobServerRateLimiter.Client fresh = rateLimiter.client("foo");
+        assertNotSame(client, fresh);
+        assertEquals(0, rateLimiter.admit(fresh));
+    }
+
+    @Test
+    public void testFairShare() {
+        // Given
+        JobServerRateLimiter rateLimiter = new JobServerRateLimiter(0, 1, 0, now::get);
+        JobServerRateLimiter.Client greedy = rateLimiter.client("greedy");
+        JobServerRateLimiter.Client modest = rateLimiter.client("modest");
+        rateLimiter.started(greedy);
+        rateLimiter.started(greedy);
+        rateLimiter.started(modest);
+        rateLimiter.worked(greedy, 900);
+        rateLimiter.worked(modest, 100);
+
+        // Assert nobody needs to step aside while the pool is keeping up
+        rateLimiter.decay(false);
+        assertFalse(rateLimiter.overShare(greedy));
+        assertFalse(rateLimiter.overShare(modest));
+
+        // ...but the greedy client does once it is falling behind
+        rateLimiter.decay(true);
+        assertTrue(rateLimiter.overShare(greedy));
+        assertFalse(rateLimiter.overShare(modest));
+
+        // ...unless it is the only one left
+        rateLimiter.finished(modest);
+        assertEquals(1, rateLimiter.getActiveClients());
+        assertFalse(rateLimiter.overShare(greedy));
+    }
+
+}
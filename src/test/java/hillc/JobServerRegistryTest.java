@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.mockito.quality.Strictness;
+import org.slf4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class JobServerRegistryTest {
+
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule().strictness(Strictness.LENIENT);
+
+    @Mock
+    private JobServerWorker mockJobServerWorker;
+
+    @Mock
+    private JobServerClientOutput mockJobServerClientOutput;
+
+    @Mock
+    private Logger mockLogger;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final JobServerRegistry registry = new JobServerRegistry(clock::get);
+
+    @Before
+    public void setUp() {
+        when(mockJobServerWorker.getName()).thenReturn("/tmp/foo");
+        when(mockJobServerWorker.getRescheduleInterval()).thenReturn(5);
+        when(mockJobServerClientOutput.getBytesQueued()).thenReturn(100L);
+    }
+
+    @Test
+    public void testStates() throws Exception {
+        // Test a job goes from queued, to running, to sleeping, then back to queued once overdue
+
+        // Given
+        final JobServerRegistry.Job[] job = new JobServerRegistry.Job[1];
+        when(mockJobServerWorker.doWork(any())).thenAnswer(invocation -> {
+            assertEquals(JobServerRegistry.State.RUNNING, job[0].getState(clock.get()));
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            return false;
+        });
+        job[0] = registry.register(1, "nightly", mockJobServerWorker, mockJobServerClientOutput, 0);
+
+        // Run, and assert
+        assertEquals(JobServerRegistry.State.QUEUED, job[0].getState(clock.get()));
+        assertFalse(job[0].doWork(mockLogger));
+        assertEquals(JobServerRegistry.State.SLEEPING, job[0].getState(clock.get()));
+        assertEquals(0, job[0].getLateMillis(clock.get()));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(7)); // i.e. 2s late
+        assertEquals(JobServerRegistry.State.QUEUED, job[0].getState(clock.get()));
+        assertEquals(2000, job[0].getLateMillis(clock.get()));
+        assertEquals(8000, job[0].getAgeMillis(clock.get()));
+        assertEquals(1, job[0].getRuns());
+
+        registry.remove(job[0]);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testDelayedAdmission() {
+        // Test a job held back by admission control isn't due until its delay is up
+
+        // Given
+        final JobServerRegistry.Job job = registry.register(1, "nightly", mockJobServerWorker, mockJobServerClientOutput,
+                TimeUnit.SECONDS.toNanos(1));
+
+        // Assert
+        assertEquals(JobServerRegistry.State.SLEEPING, job.getState(clock.get()));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(JobServerRegistry.State.QUEUED, job.getState(clock.get()));
+    }
+
+    @Test
+    public void testSnapshot() {
+        // Test the snapshot counts every job, lists the oldest, and the clients with the most jobs
+
+        // Given, 10 jobs, a second apart, 7 from "nightly", 3 from "adhoc"
+        for (int i = 0; i < 10; i++) {
+            registry.register(i, i < 7 ? "nightly" : "adhoc", mockJobServerWorker, mockJobServerClientOutput,
+                    i % 2 == 0 ? 0 : TimeUnit.HOURS.toNanos(1));
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        }
+
+        // Run
+        final JobServerRegistry.Snapshot snapshot = registry.snapshot(3);
+
+        // Assert
+        assertEquals(5, snapshot.count(JobServerRegistry.State.QUEUED));
+        assertEquals(5, snapshot.count(JobServerRegistry.State.SLEEPING));
+        assertEquals(0, snapshot.count(JobServerRegistry.State.RUNNING));
+        assertEquals(1000, snapshot.getBytesQueued());
+        assertEquals(Arrays.asList(0L, 1L, 2L),
+                snapshot.getOldest().stream().map(JobServerRegistry.Job::getId).collect(Collectors.toList()));
+        assertEquals("nightly", snapshot.getBusiest().get(0).getKey());
+        assertEquals(7, (int) snapshot.getBusiest().get(0).getValue());
+        assertEquals(2, snapshot.getBusiest().size());
+
+        final List<String> lines = snapshot.toLines();
+        assertEquals("jobs queued=5 running=0 sleeping=5 total=10 clients=2 bytesQueued=1000", lines.get(0));
+        assertEquals("job id=0 state=queued ageMillis=10000 lateMillis=10000 runs=0 client=nightly name=/tmp/foo", lines.get(1));
+        assertEquals("client id=adhoc jobs=3", lines.get(5));
+        assertEquals(6, lines.size());
+    }
+
+    @Test
+    public void testSnapshotWhileChanging() throws Exception {
+        // Test snapshots can be taken while jobs come and go on other threads, without blocking or failing them
+
+        // Given, threads each keeping a window of 100 jobs, sliding along
+        final JobServerClientOutput output = mock(JobServerClientOutput.class, withSettings().stubOnly());
+        when(output.getBytesQueued()).thenReturn(100L);
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        final List<Future<?>> threads = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            final long base = t * 1_000_000L;
+            threads.add(pool.submit(() -> {
+                final Deque<JobServerRegistry.Job> window = new ArrayDeque<>();
+                for (long i = base; i < base + 100_000; i++) {
+                    window.add(registry.register(i, "client-" + base, mockJobServerWorker, output, 0));
+                    if (window.size() > 100) {
+                        registry.remove(window.remove());
+                    }
+                }
+            }));
+        }
+
+        // Run, and assert
+        try {
+            while (!threads.stream().allMatch(Future::isDone)) {
+                final JobServerRegistry.Snapshot snapshot = registry.snapshot(5);
+                assertTrue(snapshot.getOldest().size() <= 5);
+            }
+            for (Future<?> thread : threads) {
+                thread.get(); // i.e. didn't fail
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Assert, once quiet, the snapshot sees exactly what is left
+        final JobServerRegistry.Snapshot snapshot = registry.snapshot(5);
+        assertEquals(200, snapshot.count(JobServerRegistry.State.QUEUED));
+        assertEquals(200 * 100L, snapshot.getBytesQueued());
+        assertEquals(5, snapshot.getOldest().size());
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JobServerReplayTest {
+
+    private static final Path DIR = Paths.get("/tmp/replay");
+
+    @Test
+    public void testSingleTarget() {
+        // Test a plain job, and a checksum job, are replayed as themselves, for a rewritten target
+
+        // Given
+        JobServerReplay.Job plain = new JobServerReplay.Job(1, 0, "/prod/foo");
+        JobServerReplay.Job checksum = new JobServerReplay.Job(2, 0, Protocol.PROTO_CTRL + Protocol.REQUEST_CHECKSUM + "/prod/foo");
+
+        // Run
+        List<Path> plainFiles = JobServerReplay.files(plain, DIR);
+        List<Path> checksumFiles = JobServerReplay.files(checksum, DIR);
+
+        // Assert
+        assertEquals(Collections.singletonList(DIR.resolve("job-1")), plainFiles);
+        assertEquals(DIR.resolve("job-1").toString(), JobServerReplay.replayRequest(plain.request, plainFiles));
+        assertEquals(Protocol.PROTO_CTRL + Protocol.REQUEST_CHECKSUM + DIR.resolve("job-2"),
+                JobServerReplay.replayRequest(checksum.request, checksumFiles));
+
+        // ...or as recorded, if not rewriting
+        assertEquals(Collections.singletonList(Paths.get("/prod/foo")), JobServerReplay.files(plain, null));
+    }
+
+    @Test
+    public void testBulk() {
+        // Test a bulk job is replayed as one, with its options (bar compression, which the replay can't read), and
+        // each of its (unique) targets rewritten
+
+        // Given
+        JobServerReplay.Job bulk = new JobServerReplay.Job(3, 0,
+                Protocol.PROTO_CTRL + Protocol.OPTION_ID + "nightly" + Protocol.LINE_ENDING
+                        + Protocol.PROTO_CTRL + Protocol.OPTION_COMPRESS + "deflate" + Protocol.LINE_ENDING
+                        + Protocol.PROTO_CTRL + Protocol.REQUEST_BULK + "/prod/foo\n/prod/bar\n/prod/foo\n");
+
+        // Run
+        List<Path> files = JobServerReplay.files(bulk, DIR);
+
+        // Assert
+        assertTrue(JobServerReplay.isReplayable(bulk.request));
+        assertEquals(Arrays.asList(DIR.resolve("job-3-0"), DIR.resolve("job-3-1")), files);
+        assertEquals(Protocol.PROTO_CTRL + Protocol.OPTION_ID + "nightly" + Protocol.LINE_ENDING
+                        + Protocol.PROTO_CTRL + Protocol.REQUEST_BULK + DIR.resolve("job-3-0") + "\n" + DIR.resolve("job-3-1"),
+                JobServerReplay.replayRequest(bulk.request, files));
+    }
+
+    @Test
+    public void testNotReplayable() {
+        // Test manifests (whose contents weren't recorded) and unknown commands are skipped
+        assertFalse(JobServerReplay.isReplayable(JobServerRequest.parse(Protocol.PROTO_CTRL + Protocol.REQUEST_MANIFEST + "/prod/list")));
+        assertFalse(JobServerReplay.isReplayable(JobServerRequest.parse(Protocol.PROTO_CTRL + "NONSENSE!")));
+    }
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JobServerRequestTest {
+
+    @Test
+    public void testPlainPayload() {
+        // Test the original bare filename request
+        JobServerRequest request = JobServerRequest.parse("/tmp/foo");
+
+        assertNull(request.getCommand());
+        assertNull(request.getOption(Protocol.OPTION_ID));
+        assertEquals("/tmp/foo", request.getBody());
+    }
+
+    @Test
+    public void testCommand() {
+        JobServerRequest request = JobServerRequest.parse(Protocol.PROTO_CTRL + Protocol.REQUEST_STATS);
+
+        assertEquals(Protocol.REQUEST_STATS, request.getCommand());
+        assertEquals("", request.getBody());
+    }
+
+    @Test
+    public void testOptions() {
+        // Test options are peeled off the front of both plain payloads and commands
+        JobServerRequest request = JobServerRequest.parse(Protocol.PROTO_CTRL + Protocol.OPTION_ID + "nightly" + Protocol.LINE_ENDING + "/tmp/foo");
+
+        assertNull(request.getCommand());
+        assertEquals("nightly", request.getOption(Protocol.OPTION_ID));
+        assertEquals("/tmp/foo", request.getBody());
+
+        request = JobServerRequest.parse(Protocol.PROTO_CTRL + Protocol.OPTION_ID + "nightly" + Protocol.LINE_ENDING
+                + Protocol.PROTO_CTRL + Protocol.REQUEST_STATS + Protocol.LINE_ENDING);
+
+        assertEquals(Protocol.REQUEST_STATS, request.getCommand());
+        assertEquals("nightly", request.getOption(Protocol.OPTION_ID));
+        assertEquals("", request.getBody());
+    }
+
+}
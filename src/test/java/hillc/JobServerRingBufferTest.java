@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JobServerRingBufferTest {
+
+    @Test
+    public void testOfferPoll() {
+        // Test FIFO order, wrapping round, and refusing offers when full
+
+        // Given
+        JobServerRingBuffer<Integer> ring = new JobServerRingBuffer<>(3);
+        assertEquals(4, ring.capacity());
+
+        for (int round = 0; round < 3; round++) {
+            // Run
+            for (int i = 0; i < 4; i++) {
+                assertTrue(ring.offer(i));
+            }
+            assertFalse(ring.offer(4));
+
+            // Assert
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(i), ring.poll());
+            }
+            assertNull(ring.poll());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        // Test a producer and consumer on separate threads see every element, in order
+        final int count = 1_000_000;
+
+        // Given
+        JobServerRingBuffer<Integer> ring = new JobServerRingBuffer<>(64);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!ring.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+
+        // Run
+        producer.start();
+        for (int expected = 0; expected < count; ) {
+            Integer i = ring.poll();
+            if (i == null) {
+                Thread.yield();
+            } else {
+                // Assert
+                assertEquals(expected++, i.intValue());
+            }
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how throughput scales with the number of JobServer processes sharing one port (see JobServerCluster), for
+ * the same job mix as JobServerAffinityBenchmark, i.e. jobs that are done on their first run. Note that with N
+ * processes (N - 1) / N of the jobs take the extra forwarding hop, and that the client side shares the same host.
+ * <p>
+ * Not a unit test, run it by hand (on Linux, as SO_REUSEPORT needs epoll), e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerScaleOutBenchmark -Dexec.classpathScope=test \
+ *     -Dbenchmark.instances=1,2,4
+ * </pre>
+ */
+public class JobServerScaleOutBenchmark {
+
+    // Configuration
+    private static final int PORT = Integer.getInteger("benchmark.port", 12346); // For the JobServers we start
+    private static final String INSTANCES = System.getProperty("benchmark.instances", "1,2,4"); // Process counts to try
+    private static final int JOBS = Integer.getInteger("benchmark.jobs", 20_000); // Measured jobs, per process count
+    private static final int WARMUP_JOBS = Integer.getInteger("benchmark.warmupJobs", 10_000);
+
+    public static void main(String[] args) throws Exception {
+        final Path dir = Files.createTempDirectory("jobserver-scaleout");
+        double baseline = 0;
+        try {
+            for (String count : INSTANCES.split(",")) {
+                final int instances = Integer.parseInt(count.trim());
+                final List<Process> servers = new ArrayList<>();
+                try {
+                    for (int instance = 0; instance < instances; instance++) {
+                        servers.add(new ProcessBuilder(Arrays.asList(
+                                System.getProperty("java.home") + "/bin/java",
+                                "-Djobserver.port=" + PORT,
+                                "-Djobserver.forwardPort=" + (PORT + 1),
+                                "-Djobserver.instances=" + instances,
+                                "-Djobserver.instance=" + instance,
+                                "-Djobserver.reusePort=true",
+                                "-cp", System.getProperty("java.class.path"),
+                                JobServer.class.getName()))
+                                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                                .start());
+                    }
+                    try (JobServerClient client = new JobServerClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT))) {
+                        JobServerAffinityBenchmark.awaitServer(client);
+                        Thread.sleep(2000); // Let the rest of them start too
+                        JobServerAffinityBenchmark.run(client, dir, WARMUP_JOBS);
+                        final long[] latencies = JobServerAffinityBenchmark.run(client, dir, JOBS);
+                        final double throughput = JOBS / (latencies[JOBS] / 1e9);
+                        if (baseline == 0) {
+                            baseline = throughput / instances;
+                        }
+                        final long[] sorted = Arrays.copyOf(latencies, JOBS);
+                        Arrays.sort(sorted);
+                        System.out.printf(Locale.ROOT, "instances=%-2d %8.0f jobs/s (%.2fx of linear), latency us p50 %6d, p99 %6d%n",
+                                instances, throughput, throughput / (baseline * instances),
+                                JobServerLoadGenerator.percentile(sorted, 50) / 1000,
+                                JobServerLoadGenerator.percentile(sorted, 99) / 1000);
+                    }
+                } finally {
+                    for (Process server : servers) {
+                        server.destroy();
+                        server.waitFor();
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+}
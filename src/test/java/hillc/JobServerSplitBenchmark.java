@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how a single checksum job's latency scales with the threads of the shared split pool (see
+ * JobServerWorkerSplittable), i.e. checksumming one (page cached) file, from 1 thread up to one per core.
+ * <p>
+ * Not a unit test, run it by hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerSplitBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class JobServerSplitBenchmark {
+
+    // Configuration
+    private static final int FILE_MB = Integer.getInteger("benchmark.fileMb", 256); // Size of the file to checksum
+    private static final int RUNS = Integer.getInteger("benchmark.runs", 10); // Measured jobs, per pool size
+    private static final int WARMUP_RUNS = Integer.getInteger("benchmark.warmupRuns", 5);
+
+    public static void main(String[] args) throws Exception {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).detachAndStopAllAppenders();
+        final org.slf4j.Logger clientLog = LoggerFactory.getLogger(JobServerSplitBenchmark.class);
+        final Path file = Files.createTempFile("jobserver-split", ".dat");
+        try {
+            writeFile(file);
+            final int cores = Runtime.getRuntime().availableProcessors();
+            System.out.printf(Locale.ROOT, "Checksumming %d MB, %d cores%n", FILE_MB, cores);
+            for (int threads = 1; threads <= cores; threads = threads < cores ? Math.min(threads * 2, cores) : cores + 1) {
+                final ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    final long[] nanos = new long[RUNS];
+                    for (int run = -WARMUP_RUNS; run < RUNS; run++) {
+                        final long start = System.nanoTime();
+                        final JobServerWorkerChecksum worker = new JobServerWorkerChecksum(1, file.toString(), pool, 1);
+                        while (!worker.doWork(clientLog)) {
+                            Thread.sleep(1); // i.e. check back far sooner than the server would
+                        }
+                        if (run >= 0) {
+                            nanos[run] = System.nanoTime() - start;
+                        }
+                    }
+                    Arrays.sort(nanos);
+                    final double millis = nanos[RUNS / 2] / 1e6;
+                    System.out.printf(Locale.ROOT, "threads=%-3d median %8.1f ms, %8.1f MB/s%n",
+                            threads, millis, FILE_MB * 1000 / millis);
+                } finally {
+                    pool.shutdownNow();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void writeFile(final Path file) throws Exception {
+        final byte[] chunk = new byte[1 << 20];
+        final Random random = new Random(42);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < FILE_MB; i++) {
+                random.nextBytes(chunk);
+                channel.write(ByteBuffer.wrap(chunk));
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how soon a (re)started JobServer is useful, with and without the warm up (-Djobserver.warmUp), i.e. from
+ * launching the JVM to its ready file appearing, and to the DONE of a job submitted (and retried, if refused) from the
+ * moment of launch, plus how long the job after that takes, for comparison.
+ * <p>
+ * Not a unit test, run it by hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=hillc.JobServerStartupBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class JobServerStartupBenchmark {
+
+    // Configuration
+    private static final int PORT = Integer.getInteger("benchmark.port", 12346); // For the JobServers we start
+    private static final int RUNS = Integer.getInteger("benchmark.runs", 10); // Restarts, per mode
+
+    public static void main(String[] args) throws Exception {
+        final Path dir = Files.createTempDirectory("jobserver-startup");
+        final Path readyFile = dir.resolve("ready");
+        try (JobServerClient client = new JobServerClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT))) {
+            for (int round = 0; round < 2; round++) { // i.e. warm up (our client), then measure
+                for (String warmUp : new String[]{"false", "true"}) {
+                    final long[] ready = new long[RUNS];
+                    final long[] firstDone = new long[RUNS];
+                    final long[] nextJob = new long[RUNS];
+                    for (int i = 0; i < RUNS; i++) {
+                        final int run = i;
+                        final long start = System.nanoTime();
+                        final Process server = new ProcessBuilder(Arrays.asList(
+                                System.getProperty("java.home") + "/bin/java",
+                                "-Djobserver.port=" + PORT,
+                                "-Djobserver.warmUp=" + warmUp,
+                                "-Djobserver.readyFile=" + readyFile,
+                                "-cp", System.getProperty("java.class.path"),
+                                JobServer.class.getName()))
+                                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                                .start();
+                        final Thread watcher = new Thread(() -> { // Poll from the moment of launch, as a restart script would
+                            try {
+                                while (!Files.exists(readyFile)) {
+                                    Thread.sleep(1);
+                                }
+                                ready[run] = System.nanoTime() - start;
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }, "Ready File Watcher");
+                        watcher.start();
+                        try {
+                            // Keep trying from the moment of launch too, as a client during a restart would
+                            final Path file = Files.createFile(dir.resolve("job-" + round + "-" + warmUp + "-" + run));
+                            while (!isDone(client, file)) {
+                                Thread.sleep(1);
+                            }
+                            firstDone[run] = System.nanoTime() - start;
+                            watcher.join();
+
+                            final Path next = Files.createFile(dir.resolve(file.getFileName() + "-next"));
+                            final long submitted = System.nanoTime();
+                            if (!isDone(client, next)) {
+                                throw new IllegalStateException("Next job failed");
+                            }
+                            nextJob[run] = System.nanoTime() - submitted;
+                        } finally {
+                            server.destroy();
+                            server.waitFor();
+                            while (Files.exists(readyFile)) { // i.e. removed on exit
+                                Thread.sleep(1);
+                            }
+                        }
+                    }
+                    if (round == 1) {
+                        System.out.printf(Locale.ROOT, "warmUp=%-5s median ms: launch to ready %6.1f, launch to first DONE %6.1f, next job %6.2f%n",
+                                warmUp, median(ready) / 1e6, median(firstDone) / 1e6, median(nextJob) / 1e6);
+                    }
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // Submits a job for an already existing file, so done on its first run
+    private static boolean isDone(final JobServerClient client, final Path file) {
+        try {
+            return client.submit(file.toString(), line -> {
+            }).get(30, TimeUnit.SECONDS).isDone();
+        } catch (Exception e) {
+            return false; // e.g. connection refused, not listening yet
+        }
+    }
+
+    private static double median(final long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.CharsetUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JobServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testJobs() {
+        // Test a JOBS! request is answered with a snapshot, then DONE
+
+        // Given
+        EmbeddedChannel channel = newServerChannel();
+
+        // Run
+        channel.writeInbound(Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REQUEST_JOBS + "5", CharsetUtil.UTF_8));
+
+        // Assert
+        String reply = readAll(channel);
+        assertTrue(reply, reply.startsWith(Protocol.PROTO_LOG + "jobs "));
+        assertTrue(reply, reply.endsWith(Protocol.PROTO_CTRL + Protocol.REPLY_DONE + 0 + Protocol.LINE_ENDING));
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testJobsBadLimit() {
+        // Test a JOBS! request with a limit we can't use is turned away, rather than left hanging
+
+        for (String limit : new String[]{"-1", "lots"}) {
+            // Given
+            EmbeddedChannel channel = newServerChannel();
+
+            // Run
+            channel.writeInbound(Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REQUEST_JOBS + limit, CharsetUtil.UTF_8));
+
+            // Assert
+            assertEquals(Protocol.PROTO_CTRL + Protocol.REPLY_FAIL + JobServer.BAD_REQUEST_RETURN_CODE + Protocol.LINE_ENDING,
+                    readAll(channel));
+            assertFalse(channel.isOpen());
+        }
+    }
+
+    @Test
+    public void testCorruptFrame() {
+        // Test a binary client that sends a frame we can't decode is closed, rather than left hanging
+
+        // Given
+        EmbeddedChannel channel = newServerChannel();
+
+        // Run, i.e. a frame of length 0, so without even a type
+        channel.writeInbound(Unpooled.buffer().writeByte(JobServerFrame.HANDSHAKE).writeInt(0));
+
+        // Assert
+        assertFalse(channel.isOpen());
+        channel.checkException(); // i.e. handled, not passed on
+    }
+
+    @Test
+    public void testForwardedRequest() {
+        // Test a request is forwarded (see JobServerCluster) as the client sent it, with their identity if they gave none
+
+        // Given
+        String anonymous = Protocol.PROTO_CTRL + Protocol.REQUEST_CHECKSUM + "/tmp/foo";
+        String named = Protocol.PROTO_CTRL + Protocol.OPTION_ID + "nightly" + Protocol.LINE_ENDING + anonymous;
+
+        // Run, and assert, in text
+        for (String payload : new String[]{anonymous, named}) {
+            ByteBuf text = JobServer.Handler.forwardedRequest(ByteBufAllocator.DEFAULT, payload,
+                    JobServerRequest.parse(payload), "nightly", false);
+            assertEquals(named, text.toString(CharsetUtil.UTF_8));
+            text.release();
+        }
+
+        // ...and binary, i.e. the handshake, then a single request frame
+        ByteBuf binary = JobServer.Handler.forwardedRequest(ByteBufAllocator.DEFAULT, anonymous,
+                JobServerRequest.parse(anonymous), "nightly", true);
+        assertEquals(JobServerFrame.HANDSHAKE, binary.readByte());
+        byte[] raw = named.getBytes(CharsetUtil.UTF_8);
+        assertEquals(1 + raw.length, binary.readInt());
+        assertEquals(JobServerFrame.REQUEST, binary.readByte());
+        assertEquals(named, binary.toString(CharsetUtil.UTF_8));
+        binary.release();
+    }
+
+    @Test
+    public void testBadTrace() throws Exception {
+        // Test a failed start, e.g. a trace file we can't open, exits rather than leaving the JVM running with nothing
+        // listening
+
+        // Given a trace in a directory that doesn't exist, and a JVM of its own, as the configuration is static
+        Path trace = folder.getRoot().toPath().resolve("missing").resolve("jobserver.trace");
+        ProcessBuilder builder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-Djobserver.port=0", "-Djobserver.warmUp=false", "-Djobserver.trace=" + trace,
+                JobServer.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+
+        // Run
+        Process process = builder.start();
+        try {
+            // Assert
+            assertTrue("Still running", process.waitFor(60, TimeUnit.SECONDS));
+            assertNotEquals(0, process.exitValue());
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void testHeartbeats() throws InterruptedException {
+        // Test a client that opted in to heartbeats is pinged whenever it goes quiet, and once it has left enough pings
+        // unanswered is closed, and its job cancelled
+
+        // Given a job waiting for a file that won't arrive, that has had its first check, and is waiting for the next
+        EmbeddedChannel channel = newServerChannel();
+        String target = new File(folder.getRoot(), "never").getPath();
+        channel.writeInbound(Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.OPTION_HEARTBEAT + "1"
+                + Protocol.LINE_ENDING + target, CharsetUtil.UTF_8));
+        JobServerRunnable runnable = ((JobServer.Handler) channel.pipeline().get("handler")).getRunnable();
+        assertNotNull(runnable);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (runnable.getScheduledFuture() == null) {
+            assertTrue("Job never ran", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        channel.runPendingTasks();
+        readAll(channel); // i.e. its log
+
+        // Run, and assert each quiet spell is met with a ping, and that an answer starts the count again
+        String ping = Protocol.PROTO_CTRL + Protocol.REPLY_PING + Protocol.LINE_ENDING;
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+        assertEquals(ping, readAll(channel));
+        channel.writeInbound(Unpooled.copiedBuffer(Protocol.PROTO_CTRL + Protocol.REQUEST_PONG + Protocol.LINE_ENDING, CharsetUtil.UTF_8));
+        for (int i = 0; i < JobServer.HEARTBEAT_MISSES; i++) {
+            channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+            assertEquals(ping, readAll(channel));
+            assertTrue(channel.isOpen());
+        }
+
+        // ...until the client has stopped answering
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+        channel.runPendingTasks();
+
+        // Assert
+        assertEquals("", readAll(channel));
+        assertFalse(channel.isOpen());
+        assertTrue(runnable.getScheduledFuture().isCancelled());
+    }
+
+    // A server pipeline, as a client connection would get it
+    private static EmbeddedChannel newServerChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("negotiator", new JobServerFrameCodec.Negotiator())
+                .addLast("handler", new JobServer.Handler());
+        return channel;
+    }
+
+    // Everything written back to the client so far, as text
+    private static String readAll(final EmbeddedChannel channel) {
+        StringBuilder reply = new StringBuilder();
+        for (ByteBuf b; (b = channel.readOutbound()) != null; b.release()) {
+            reply.append(b.toString(CharsetUtil.UTF_8));
+        }
+        return reply.toString();
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class JobServerTraceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        // Test submission and completion records are faithfully read back
+        Path path = folder.newFile().toPath();
+
+        // Run
+        try (JobServerTrace trace = JobServerTrace.open(path)) {
+            trace.submitted(1, "/tmp/foo");
+            trace.submitted(300, "/tmp/bär");
+            trace.completed(300, JobServerTrace.Outcome.FAIL, -1, 123456789L);
+            trace.completed(1, JobServerTrace.Outcome.DONE, 0, 42);
+        }
+
+        // Assert
+        try (JobServerTrace.Reader reader = new JobServerTrace.Reader(path)) {
+            assertTrue(reader.getStartEpochMillis() > 0);
+
+            JobServerTrace.Reader.Record record = reader.next();
+            assertEquals(JobServerTrace.RECORD_SUBMITTED, record.type);
+            assertEquals(1, record.jobId);
+            assertEquals("/tmp/foo", record.payload);
+
+            record = reader.next();
+            assertEquals(JobServerTrace.RECORD_SUBMITTED, record.type);
+            assertEquals(300, record.jobId);
+            assertEquals("/tmp/bär", record.payload);
+
+            record = reader.next();
+            assertEquals(JobServerTrace.RECORD_COMPLETED, record.type);
+            assertEquals(300, record.jobId);
+            assertEquals(JobServerTrace.Outcome.FAIL, record.outcome);
+            assertEquals(-1, record.returnCode);
+            assertEquals(123456789L, record.bytesSent);
+
+            record = reader.next();
+            assertEquals(JobServerTrace.RECORD_COMPLETED, record.type);
+            assertEquals(1, record.jobId);
+            assertEquals(JobServerTrace.Outcome.DONE, record.outcome);
+            assertEquals(0, record.returnCode);
+            assertEquals(42, record.bytesSent);
+
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testCorrupt() throws IOException {
+        // Test an outcome or record type we don't know (e.g. from a corrupt or newer trace), or a payload length we
+        // can't use, is an IOException naming where it is, rather than a runtime exception (or out of memory)
+
+        // i.e. after the 13 byte header, a record of type, job id and micros, then its own fields at offset 16
+        assertCorrupt("Unknown outcome 99 at offset 16", JobServerTrace.RECORD_COMPLETED, 99, 0, 0);
+        assertCorrupt("Unknown record type 88 at offset 13", 'X', 0, 0);
+        assertCorrupt("Bad payload length -1 at offset 16",
+                JobServerTrace.RECORD_SUBMITTED, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01);
+        assertCorrupt("Bad payload length 1099511627776 at offset 16", JobServerTrace.RECORD_SUBMITTED, 0x80, 0x80, 0x80, 0x80, 0x80, 0x20);
+        assertCorrupt("Bad payload length 100 at offset 16, past the end of the trace", JobServerTrace.RECORD_SUBMITTED, 100, 'a');
+    }
+
+    // Writes a header, then a record of the given type for job 1, at 0 micros, followed by the given bytes, and asserts
+    // reading it back fails with the given message, as an EOFException (i.e. just truncated) if past the end
+    private void assertCorrupt(final String message, final int type, final int... rest) throws IOException {
+        Path path = folder.newFile().toPath();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            out.write(JobServerTrace.MAGIC);
+            out.writeByte(JobServerTrace.VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeByte(type);
+            out.writeByte(1);
+            out.writeByte(0);
+            for (int b : rest) {
+                out.writeByte(b);
+            }
+        }
+
+        try (JobServerTrace.Reader reader = new JobServerTrace.Reader(path)) {
+            reader.next();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+            assertEquals(message.endsWith("end of the trace"), e instanceof EOFException);
+        }
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        // Test no trace file means nothing is recorded
+        assertSame(JobServerTrace.DISABLED, JobServerTrace.open(null));
+        JobServerTrace.DISABLED.submitted(1, "/tmp/foo");
+        JobServerTrace.DISABLED.completed(1, JobServerTrace.Outcome.DONE, 0, 0);
+    }
+
+}
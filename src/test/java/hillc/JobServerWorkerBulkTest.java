@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class JobServerWorkerBulkTest {
+
+    // Mocks
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule();
+    @Mock
+    private Logger mockLogger;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTargets() throws Exception {
+        // Given
+        File foo = new File(folder.getRoot(), "foo");
+        File bar = new File(folder.getRoot(), "bar");
+        JobServerWorkerBulk worker = JobServerWorkerBulk.ofTargets(5, Arrays.asList(foo.getPath(), bar.getPath(), ""));
+
+        // Assert nothing has arrived yet
+        assertEquals("bulk of 2 targets", worker.getName());
+        assertFalse(worker.doWork(mockLogger));
+
+        // ...then one does
+        assertTrue(foo.createNewFile());
+        assertFalse(worker.doWork(mockLogger));
+        assertFalse(foo.exists());
+
+        // ...then the other, and the whole job is done
+        assertTrue(bar.createNewFile());
+        assertTrue(worker.doWork(mockLogger));
+        assertFalse(bar.exists());
+        assertEquals(0, worker.getReturnCode());
+        assertEquals(5, worker.getRescheduleInterval());
+    }
+
+    @Test
+    public void testManifestWithBadTarget() throws Exception {
+        // Given a manifest with a target we can never process (an invalid path), and one still to arrive
+        File foo = new File(folder.getRoot(), "foo");
+        File manifest = folder.newFile("manifest");
+        Files.write(manifest.toPath(), Arrays.asList(foo.getPath(), "  ", "bad\u0000path"));
+        JobServerWorkerBulk worker = JobServerWorkerBulk.ofManifest(5, manifest.getPath());
+
+        // Assert the bad target doesn't stop us waiting for the good one
+        assertEquals(manifest.getPath(), worker.getName());
+        assertFalse(worker.doWork(mockLogger));
+        assertTrue(foo.createNewFile());
+        assertTrue(worker.doWork(mockLogger));
+
+        // ...but is reported in the return code
+        assertEquals(1, worker.getReturnCode());
+    }
+
+    @Test
+    public void testRepeatedTargets() throws Exception {
+        // Given the same target twice, given directly, and in a manifest
+        File foo = new File(folder.getRoot(), "foo");
+        File bar = new File(folder.getRoot(), "bar");
+        File manifest = folder.newFile("manifest");
+        Files.write(manifest.toPath(), Arrays.asList(foo.getPath(), bar.getPath(), " " + foo.getPath()));
+        JobServerWorkerBulk targets = JobServerWorkerBulk.ofTargets(5, Arrays.asList(foo.getPath(), bar.getPath(), foo.getPath() + " "));
+        JobServerWorkerBulk manifested = JobServerWorkerBulk.ofManifest(5, manifest.getPath());
+        assertEquals("bulk of 2 targets", targets.getName());
+
+        for (JobServerWorkerBulk worker : new JobServerWorkerBulk[]{targets, manifested}) {
+            // Run
+            assertFalse(worker.doWork(mockLogger));
+            assertTrue(foo.createNewFile());
+            assertTrue(bar.createNewFile());
+
+            // Assert it is done once each has arrived once, rather than waiting for a second foo forever
+            assertTrue(worker.doWork(mockLogger));
+            assertEquals(0, worker.getReturnCode());
+        }
+    }
+
+    @Test
+    public void testNoTargets() throws Exception {
+        // Given a bulk job of blank lines, and an empty manifest
+        File manifest = folder.newFile("manifest");
+        for (JobServerWorkerBulk worker : new JobServerWorkerBulk[]{
+                JobServerWorkerBulk.ofTargets(5, Arrays.asList("", " ")),
+                JobServerWorkerBulk.ofManifest(5, manifest.getPath())}) {
+
+            // Assert they are turned away, rather than done straight away
+            try {
+                worker.doWork(mockLogger);
+                fail("Expected nothing to wait for to fail");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertEquals(JobServer.BAD_REQUEST_RETURN_CODE, worker.getReturnCode());
+        }
+    }
+
+    @Test(expected = java.nio.file.NoSuchFileException.class)
+    public void testMissingManifest() throws Exception {
+        JobServerWorkerBulk.ofManifest(5, new File(folder.getRoot(), "missing").getPath()).doWork(mockLogger);
+    }
+
+}
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2018, Christopher Hill <ch6574@gmail.com>
+ * GNU General Public License v3.0+ (see https://www.gnu.org/licenses/gpl-3.0.txt)
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ ******************************************************************************/
+package hillc;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class JobServerWorkerChecksumTest {
+
+    // Mocks
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule();
+    @Mock
+    private Logger mockLogger;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        // Given a file (of a few blocks, the last one short) that hasn't arrived yet
+        File foo = new File(folder.getRoot(), "foo");
+        byte[] content = new byte[20 * JobServerWorkerChecksum.BLOCK_SIZE + 12345];
+        new Random(42).nextBytes(content);
+        JobServerWorkerChecksum worker = new JobServerWorkerChecksum(5, foo.getPath(), pool, 1);
+
+        // Assert nothing has arrived yet
+        assertEquals(foo.getPath(), worker.getName());
+        assertFalse(worker.doWork(mockLogger));
+        assertEquals(5, worker.getRescheduleInterval());
+
+        // ...then it does, and is checksummed, with the worker checking back sooner while that runs
+        Files.write(foo.toPath(), content);
+        assertFalse(worker.doWork(mockLogger));
+        assertEquals(1, worker.getRescheduleInterval());
+        runToCompletion(worker);
+        verify(mockLogger).info(eq("Checksum of '{}' is {}"), eq(foo.getPath()), eq(String.format("%08x", expected(content))));
+        assertEquals(0, worker.getReturnCode());
+        assertEquals(5, worker.getRescheduleInterval());
+    }
+
+    @Test
+    public void testSameChecksumSingleThreaded() throws Exception {
+        // Given an empty file, and a small one, checksummed without any parallelism
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            for (byte[] content : new byte[][]{new byte[0], "hello".getBytes()}) {
+                File file = folder.newFile();
+                Files.write(file.toPath(), content);
+
+                // Assert the result is the same as ever
+                runToCompletion(new JobServerWorkerChecksum(5, file.getPath(), single, 1));
+                verify(mockLogger).info(eq("Checksum of '{}' is {}"), eq(file.getPath()), eq(String.format("%08x", expected(content))));
+            }
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testProgress() throws Exception {
+        // Given split work that is half done, then waits, until the worker has sent on its progress
+        CountDownLatch halfDone = new CountDownLatch(1);
+        CountDownLatch progressed = new CountDownLatch(1);
+        JobServerWorkerSplittable<String> worker = new TestSplittable(pool, () -> {
+            halfDone.countDown();
+            progressed.await(10, TimeUnit.SECONDS);
+            return "result";
+        });
+
+        // Run, without the worker ever waiting on the split work
+        assertFalse(worker.doWork(mockLogger));
+        assertTrue(halfDone.await(10, TimeUnit.SECONDS));
+        assertFalse(worker.doWork(mockLogger));
+        verify(mockLogger).info(eq("{} is {}% done"), eq("split"), eq(50L));
+        progressed.countDown();
+        runToCompletion(worker);
+
+        // Verify
+        verify(mockLogger).info("Completed with {}", "result");
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        // Given split work that only ends once the job is abandoned, e.g. as the client has gone
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch ended = new CountDownLatch(1);
+        TestSplittable[] worker = new TestSplittable[1];
+        worker[0] = new TestSplittable(pool, () -> {
+            started.countDown();
+            try {
+                while (!worker[0].isAbandoned()) {
+                    Thread.sleep(1);
+                }
+                throw new CancellationException();
+            } finally {
+                ended.countDown();
+            }
+        });
+
+        // Run, then abandon it
+        assertFalse(worker[0].doWork(mockLogger));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        worker[0].cancel();
+        assertTrue(ended.await(10, TimeUnit.SECONDS));
+
+        // Verify it ends quietly, i.e. neither completes nor throws
+        assertFalse(worker[0].doWork(mockLogger));
+        verify(mockLogger, never()).info(eq("Completed with {}"), anyString());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        // Given split work that fails, without being abandoned
+        JobServerWorkerSplittable<String> worker = new TestSplittable(pool, () -> {
+            throw new IllegalStateException("Boom");
+        });
+
+        // Run
+        try {
+            runToCompletion(worker);
+            fail("Expected the work to fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("Boom")); // N.B. may be a copy, as it was thrown on another thread
+        }
+        verify(mockLogger, never()).info(eq("Completed with {}"), anyString());
+    }
+
+    // Runs the worker as the scheduler would, but checking back far sooner
+    private void runToCompletion(final JobServerWorker worker) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!worker.doWork(mockLogger)) {
+            assertTrue("Split work not done in time", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    // The block checksum, done simply, as the split one should be
+    private static long expected(final byte[] content) {
+        final int blocks = (content.length + JobServerWorkerChecksum.BLOCK_SIZE - 1) / JobServerWorkerChecksum.BLOCK_SIZE;
+        final ByteBuffer checksums = ByteBuffer.allocate(blocks * Integer.BYTES);
+        final CRC32C crc = new CRC32C();
+        for (int i = 0; i < blocks; i++) {
+            crc.reset();
+            crc.update(content, i * JobServerWorkerChecksum.BLOCK_SIZE,
+                    Math.min(JobServerWorkerChecksum.BLOCK_SIZE, content.length - i * JobServerWorkerChecksum.BLOCK_SIZE));
+            checksums.putInt((int) crc.getValue());
+        }
+        crc.reset();
+        crc.update(checksums.array());
+        return crc.getValue();
+    }
+
+    // Split work of 100 units, reporting half of it done before running the given body
+    private static final class TestSplittable extends JobServerWorkerSplittable<String> {
+        private final Callable<String> body;
+
+        private TestSplittable(final ForkJoinPool pool, final Callable<String> body) {
+            super(pool, 1);
+            this.body = body;
+        }
+
+        @Override
+        protected ForkJoinTask<String> split(final Logger clientLog) {
+            return ForkJoinTask.adapt(() -> {
+                worked(50);
+                return body.call();
+            });
+        }
+
+        @Override
+        protected long getTotalWork() {
+            return 100;
+        }
+
+        @Override
+        protected boolean complete(final Logger clientLog, final String result) {
+            clientLog.info("Completed with {}", result);
+            return true;
+        }
+
+        @Override
+        public String getName() {
+            return "split";
+        }
+
+        @Override
+        public int getReturnCode() {
+            return 0;
+        }
+
+        @Override
+        protected int getReadyInterval() {
+            return 5;
+        }
+    }
+}
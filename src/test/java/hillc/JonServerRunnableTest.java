@@ -5,6 +5,11 @@
  ******************************************************************************/
 package hillc;
 
+import hillc.JobServerClientOutput.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.InjectMocks;
@@ -14,8 +19,13 @@ import org.mockito.junit.MockitoRule;
 
 import java.io.OutputStream;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -32,6 +42,8 @@ public class JonServerRunnableTest {
     private JobServerWorker mockJobServerWorker;
     @Mock
     private OutputStream mockOutputStream;
+    @Mock
+    private ScheduledFuture<?> mockScheduledFuture;
 
     // Test object
     @InjectMocks
@@ -128,4 +140,96 @@ public class JonServerRunnableTest {
         verifyNoInteractions(mockScheduledExecutorService);
     }
 
+    @Test
+    public void testCancel() throws Exception {
+        // Given
+        when(mockJobServerClientOutput.getOs()).thenReturn(mockOutputStream);
+        when(mockJobServerClientOutput.isClientConnected()).thenReturn(true);
+        when(mockJobServerWorker.doWork(any())).thenReturn(false); // Simulate incomplete
+        when(mockJobServerWorker.getRescheduleInterval()).thenReturn(5); // 5 sec delay
+        doReturn(mockScheduledFuture).when(mockScheduledExecutorService).schedule(jobServerRunnable, 5, TimeUnit.SECONDS);
+
+        // Run
+        jobServerRunnable.run();
+        jobServerRunnable.cancel(); // e.g. client went away
+        jobServerRunnable.run(); // e.g. we were already running, so missed the cancel
+
+        // Verify
+        verify(mockScheduledFuture, times(1)).cancel(false);
+        verify(mockJobServerClientOutput, times(1)).isClientConnected();
+        verify(mockJobServerWorker, times(1)).doWork(any());
+        verify(mockScheduledExecutorService, times(1)).schedule(jobServerRunnable, 5, TimeUnit.SECONDS);
+        verifyNoMoreInteractions(mockScheduledFuture);
+        verifyNoMoreInteractions(mockScheduledExecutorService); // No more rescheduling
+    }
+
+    @Test
+    public void testOnEventLoop() throws Exception {
+        // Test a job scheduled on its client's own event loop, where the output is written straight through
+
+        // Given
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        JobServerClientOutput output = new JobServerClientOutput(channel.pipeline().firstContext());
+        when(mockJobServerWorker.doWork(any())).thenAnswer(invocation -> {
+            output.getOs().write("hello".getBytes());
+            return true;
+        });
+        JobServerRunnable runnable = new JobServerRunnable(channel.eventLoop(), output, mockJobServerWorker);
+
+        // Run
+        channel.eventLoop().execute(runnable);
+        channel.runPendingTasks();
+
+        // Assert
+        ByteBuf log = channel.readOutbound();
+        assertEquals("hello", log.toString(CharsetUtil.UTF_8));
+        log.release();
+        ByteBuf done = channel.readOutbound();
+        assertEquals(Protocol.PROTO_CTRL + Protocol.REPLY_DONE + 0 + Protocol.LINE_ENDING, done.toString(CharsetUtil.UTF_8));
+        done.release();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testRepeatsSummarised() throws Exception {
+        // Test a job that logs the same line every run only sends it once, then a summary (at the level of that line)
+        // once it logs something else
+
+        // Given
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        JobServerClientOutput output = new JobServerClientOutput(channel.pipeline().firstContext());
+        AtomicInteger runs = new AtomicInteger();
+        when(mockJobServerWorker.doWork(any())).thenAnswer(invocation -> {
+            org.slf4j.Logger clientLog = invocation.getArgument(0);
+            clientLog.warn("Checking for {}", "/tmp/foo");
+            if (runs.incrementAndGet() < 4) {
+                return false;
+            }
+            clientLog.info("Found file '{}'", "/tmp/foo");
+            return true;
+        });
+        when(mockJobServerWorker.getRescheduleInterval()).thenReturn(5);
+        JobServerRunnable runnable = new JobServerRunnable(mockScheduledExecutorService, output, mockJobServerWorker,
+                new JobServerLogRepeats(JobServerLogRepeats.Verbosity.SUMMARY, 600, System::nanoTime));
+
+        // Run, as if rescheduled
+        for (int i = 0; i < 4; i++) {
+            runnable.run();
+        }
+
+        // Assert
+        StringBuilder sent = new StringBuilder();
+        for (ByteBuf buf; (buf = channel.readOutbound()) != null; ) {
+            sent.append(buf.toString(CharsetUtil.UTF_8));
+            buf.release();
+        }
+        String[] lines = sent.toString().split(String.valueOf(Protocol.LINE_ENDING));
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith(Protocol.PROTO_LOG) && lines[0].endsWith("Checking for /tmp/foo"));
+        assertTrue(lines[1].endsWith("Last message repeated 3 times"));
+        assertTrue(lines[1].contains(" WARN ")); // i.e. as the repeated line, not the one that ended the run
+        assertTrue(lines[2].endsWith("Found file '/tmp/foo'"));
+        assertTrue(lines[2].contains(" INFO "));
+        assertEquals(Protocol.PROTO_CTRL + Protocol.REPLY_DONE + 0, lines[3]);
+    }
 }